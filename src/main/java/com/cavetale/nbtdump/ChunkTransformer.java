@@ -0,0 +1,214 @@
+package com.cavetale.nbtdump;
+
+import com.cavetale.nbtdump.region.ChunkCompression;
+import com.cavetale.nbtdump.region.ChunkPayload;
+import com.cavetale.nbtdump.region.RegionChunk;
+import com.cavetale.nbtdump.region.WritableRegionFile;
+import com.github.steveice10.opennbt.NBTIO;
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.github.steveice10.opennbt.tag.builtin.ListTag;
+import com.github.steveice10.opennbt.tag.builtin.StringTag;
+import com.github.steveice10.opennbt.tag.builtin.Tag;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Apply NBT edits to every matching chunk of a world.  Region files
+ * are processed in parallel and edited in place, so chunks which do
+ * not match or end up unchanged are never rewritten, and region files
+ * without changes are never opened for writing.
+ */
+final class ChunkTransformer {
+    static final List<String> ENTITY_LISTS = List.of("entities", "Entities", "Level.Entities");
+    static final List<String> BLOCK_ENTITY_LISTS = List.of("block_entities", "Level.TileEntities");
+    private final List<Main.Condition> conditions;
+    private final boolean simulate;
+    private final LongAdder matchedChunks = new LongAdder();
+    private final LongAdder modifiedChunks = new LongAdder();
+    private final LongAdder modifiedRegions = new LongAdder();
+
+    ChunkTransformer(final List<Main.Condition> conditions, final boolean simulate) {
+        this.conditions = conditions != null ? conditions : List.of();
+        this.simulate = simulate;
+    }
+
+    /**
+     * A region group together with the transformer of its world.  The
+     * files of a group are transformed one after another on the same
+     * worker, as they cover the same chunks.
+     */
+    private record Item(ChunkTransformer transformer, WorldLayout.RegionGroup group) { }
+
+    /**
+     * Transform all worlds on one parallel stream, counting each world
+     * separately.
+     */
+    static void transform(List<File> worldFolders, List<Main.Condition> conditions, List<Main.Edit> edits, boolean simulate) {
+        if (edits == null || edits.isEmpty()) {
+            System.err.println("No edits specified");
+            System.exit(1);
+        }
+        Map<File, ChunkTransformer> transformers = new LinkedHashMap<>();
+        List<Item> items = new ArrayList<>();
+        long fileCount = 0L;
+        for (File worldFolder : worldFolders) {
+            ChunkTransformer transformer = new ChunkTransformer(conditions, simulate);
+            transformers.put(worldFolder, transformer);
+            for (WorldLayout.RegionGroup group : WorldLayout.findRegionGroups(worldFolder)) {
+                final long count = group.files().stream()
+                    .filter(it -> !editsFor(edits, it.kind()).isEmpty())
+                    .count();
+                if (count == 0L) continue;
+                items.add(new Item(transformer, group));
+                fileCount += count;
+            }
+        }
+        if (items.isEmpty()) {
+            System.err.println("No region files found!");
+            System.exit(1);
+        }
+        Metrics.start("transform", fileCount);
+        items.parallelStream().forEach(item -> {
+                for (WorldLayout.RegionFile regionFile : item.group().files()) {
+                    final List<Main.Edit> fileEdits = editsFor(edits, regionFile.kind());
+                    if (!fileEdits.isEmpty()) item.transformer().transformRegion(regionFile.file(), fileEdits);
+                }
+            });
+        Metrics.stop();
+        for (Map.Entry<File, ChunkTransformer> entry : transformers.entrySet()) {
+            final ChunkTransformer transformer = entry.getValue();
+            System.out.println((worldFolders.size() > 1 ? entry.getKey() + ": " : "")
+                               + (simulate ? "Simulated. " : "Done. ")
+                               + "Matched " + transformer.matchedChunks.sum() + " chunks,"
+                               + " modified " + transformer.modifiedChunks.sum() + " chunks"
+                               + " in " + transformer.modifiedRegions.sum() + " region files");
+        }
+    }
+
+    /**
+     * Read the region without write access and open it for writing
+     * only once a chunk actually changed.
+     */
+    private void transformRegion(File file, List<Main.Edit> fileEdits) {
+        if (file.length() == 0L) {
+            System.err.println(file + ": File is empty");
+            Metrics.REGIONS_DONE.increment();
+            return;
+        }
+        final List<RegionChunk> changes = new ArrayList<>();
+        int modified = 0;
+        final MemoryGovernor.Lease regionLease = MemoryGovernor.acquireRegion(file.length());
+        try {
+            for (RegionChunk chunk : RegionPrefetcher.load(file)) {
+                try {
+                    if (transformChunk(chunk, fileEdits, changes)) modified += 1;
+                } catch (IOException ioe) {
+                    Metrics.CHUNKS_FAILED.increment();
+                    System.err.println(file + ": " + chunk.x() + " " + chunk.z() + ": " + ioe.getMessage());
+                } catch (RuntimeException re) {
+                    Metrics.CHUNKS_FAILED.increment();
+                    System.err.println(file + ": " + chunk.x() + " " + chunk.z() + ": " + re);
+                }
+            }
+            if (!changes.isEmpty()) {
+                try (WritableRegionFile region = new WritableRegionFile(file, WritableRegionFile.Options.DEFAULT)) {
+                    for (RegionChunk change : changes) {
+                        region.writeChunk(change.x(), change.z(), change.payload());
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println(file + ": " + ioe.getMessage());
+        } finally {
+            regionLease.close();
+        }
+        if (modified > 0) {
+            modifiedRegions.increment();
+            System.err.println(file + ": " + (simulate ? "Would modify " : "Modified ") + modified + " chunks");
+        }
+        Metrics.REGIONS_DONE.increment();
+    }
+
+    /**
+     * Edit one chunk and, unless simulating, add its re-encoded
+     * payload to the changes.
+     * @return true if the chunk was changed
+     */
+    private boolean transformChunk(RegionChunk chunk, List<Main.Edit> fileEdits, List<RegionChunk> changes) throws IOException {
+        final ChunkPayload payload = chunk.payload();
+        final MemoryGovernor.Lease lease = MemoryGovernor.acquireChunk(payload);
+        try {
+            final Tag tag = Main.decodeChunk(payload);
+            if (tag == null) return false;
+            for (Main.Condition condition : conditions) {
+                if (!condition.test(TagPath.getValue(tag, condition.path))) return false;
+            }
+            matchedChunks.increment();
+            boolean changed = false;
+            for (Main.Edit edit : fileEdits) {
+                changed |= apply(tag, edit);
+            }
+            if (!changed) return false;
+            modifiedChunks.increment();
+            if (simulate) return true;
+            final long serializeStart = System.nanoTime();
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(payload.data().length * 4);
+            NBTIO.writeTag(baos, tag);
+            final byte[] compressed = ChunkCompression.compress(payload.compressionType(), baos.toByteArray());
+            Metrics.SERIALIZE.since(serializeStart);
+            changes.add(new RegionChunk(chunk.x(), chunk.z(), chunk.timestamp(),
+                                        new ChunkPayload(payload.compressionType(), compressed)));
+            return true;
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * Entities have their own region files, everything else is edited
+     * in the terrain chunks.  Terrain chunks of old worlds still hold
+     * their entities.
+     */
+    private static boolean appliesTo(Main.Edit edit, WorldLayout.RegionKind kind) {
+        switch (kind) {
+        case REGION: return true;
+        case ENTITIES: return edit.type == Main.EditType.DROP_ENTITY;
+        default: return false;
+        }
+    }
+
+    private static List<Main.Edit> editsFor(List<Main.Edit> edits, WorldLayout.RegionKind kind) {
+        return edits.stream().filter(edit -> appliesTo(edit, kind)).toList();
+    }
+
+    private static boolean apply(Tag tag, Main.Edit edit) {
+        switch (edit.type) {
+        case DELETE: return TagPath.remove(tag, edit.path);
+        case SET: return TagPath.set(tag, edit.path, edit.value);
+        case DROP_ENTITY: return dropById(tag, ENTITY_LISTS, edit.path);
+        case DROP_BLOCK_ENTITY: return dropById(tag, BLOCK_ENTITY_LISTS, edit.path);
+        default: throw new IllegalStateException("type=" + edit.type);
+        }
+    }
+
+    private static boolean dropById(Tag tag, List<String> listPaths, String id) {
+        boolean result = false;
+        for (String listPath : listPaths) {
+            if (!(TagPath.get(tag, listPath) instanceof ListTag list)) continue;
+            for (Tag element : list.getValue()) {
+                if (element instanceof CompoundTag compound
+                    && compound.get("id") instanceof StringTag idTag
+                    && id.equals(idTag.getValue())) {
+                    result |= list.remove(element);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,124 @@
+package com.cavetale.nbtdump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Dump many small NBT files at once.  Reading tiny gzip files is
+ * bound by file open latency, so every file gets a virtual thread,
+ * with a semaphore limiting how many are open at once.  The lines of
+ * each file are written to the shared output in one piece.
+ */
+final class DatFileDumper {
+    static final String GLOB_PREFIX = "glob:";
+
+    /**
+     * Folders are always batches.  Globs must be asked for with the
+     * glob: prefix, as brackets and braces are valid in file names.
+     */
+    static boolean isBatchPath(String path) {
+        return path.startsWith(GLOB_PREFIX) || new File(path).isDirectory();
+    }
+
+    /**
+     * Find all *.dat files in a folder or matching a glob.  A glob is
+     * only walked as deep as it has path segments, unless it contains
+     * **.
+     */
+    static List<File> expand(String path) {
+        final Path base;
+        final PathMatcher matcher;
+        final int maxDepth;
+        if (path.startsWith(GLOB_PREFIX)) {
+            final String pattern = path.substring(GLOB_PREFIX.length());
+            final String prefix = pattern.substring(0, firstGlobChar(pattern));
+            final int slash = prefix.lastIndexOf('/');
+            base = Path.of(slash < 0 ? "." : (slash == 0 ? "/" : prefix.substring(0, slash)));
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + (slash < 0 ? "./" + pattern : pattern));
+            maxDepth = pattern.contains("**")
+                ? Integer.MAX_VALUE
+                : (int) pattern.substring(slash + 1).chars().filter(c -> c == '/').count() + 1;
+        } else {
+            base = Path.of(path);
+            matcher = p -> true;
+            maxDepth = Integer.MAX_VALUE;
+        }
+        try (Stream<Path> stream = Files.walk(base, maxDepth)) {
+            return stream
+                .filter(Files::isRegularFile)
+                .filter(p -> p.getFileName().toString().endsWith(".dat"))
+                .filter(matcher::matches)
+                .map(Path::toFile)
+                .sorted()
+                .toList();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private static int firstGlobChar(String path) {
+        for (int i = 0; i < path.length(); i += 1) {
+            if ("*?{[".indexOf(path.charAt(i)) >= 0) return i;
+        }
+        return path.length();
+    }
+
+    /**
+     * @param sink the shard output, or null for stdout or the output
+     *   folder
+     */
+    static void dump(List<File> files, Main.Flags flags, OutputSink sink) {
+        final boolean gzip = flags.gzipSpecified ? flags.gzip : true;
+        final boolean littleEndian = flags.endianSpecified ? flags.littleEndian : false;
+        final Semaphore open = new Semaphore(Math.max(1, flags.concurrency));
+        final PrintStream out = sink == null && flags.outputPath == null
+            ? Main.bufferedStdout()
+            : null;
+        final Path base = OutputSink.commonBase(files);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (File file : files) {
+                executor.execute(() -> {
+                        byte[] bytes;
+                        open.acquireUninterruptibly();
+                        try {
+                            bytes = Main.renderFile(file, gzip, littleEndian, flags, Main.filePrefix(flags, file.getPath()));
+                        } catch (Exception e) {
+                            System.err.println(file + ": " + e.getMessage());
+                            return;
+                        } finally {
+                            open.release();
+                        }
+                        if (bytes == null) return;
+                        if (sink != null) {
+                            sink.write(Main.shardKey(file, flags), bytes);
+                        } else if (out != null) {
+                            synchronized (out) {
+                                out.write(bytes, 0, bytes.length);
+                            }
+                        } else {
+                            try (PrintStream fileOut = OutputSink.openPrintStream(new File(flags.outputPath), OutputSink.outputName(base, file), flags.compression)) {
+                                fileOut.write(bytes, 0, bytes.length);
+                            } catch (IOException ioe) {
+                                System.err.println(file + ": " + ioe.getMessage());
+                            }
+                        }
+                    });
+            }
+        } finally {
+            if (out != null) out.flush();
+        }
+    }
+
+    private DatFileDumper() { }
+}
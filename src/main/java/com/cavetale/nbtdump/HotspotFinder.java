@@ -0,0 +1,207 @@
+package com.cavetale.nbtdump;
+
+import com.cavetale.nbtdump.nbt.RawNBT;
+import com.cavetale.nbtdump.region.ChunkPayload;
+import com.cavetale.nbtdump.region.RegionFileHeader;
+import com.cavetale.nbtdump.region.RegionHeaderTable;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Find the largest chunks of a world from the region headers alone,
+ * then decode only those to count what they contain.  Chunk size is
+ * the sectors of the terrain and entity files combined.
+ */
+final class HotspotFinder {
+    private static final List<String> TICK_LISTS = List.of("block_ticks", "fluid_ticks", "Level.TileTicks", "Level.LiquidTicks");
+    private static final Comparator<Hotspot> BY_SIZE = Comparator.comparingInt(Hotspot::sectors);
+
+    /**
+     * A chunk found in the headers.  Sectors are those of the terrain
+     * and entity files, 4 KiB each.
+     */
+    record Hotspot(File world, WorldLayout.RegionGroup group, int x, int z, int regionSectors, int entitySectors) {
+        int sectors() {
+            return regionSectors + entitySectors;
+        }
+
+        int chunkX() {
+            return (group.regionX() << 5) + x;
+        }
+
+        int chunkZ() {
+            return (group.regionZ() << 5) + z;
+        }
+    }
+
+    static void findHotspots(List<File> worldFolders, int top) throws Exception {
+        final List<Map.Entry<File, WorldLayout.RegionGroup>> items = new ArrayList<>();
+        for (File worldFolder : worldFolders) {
+            for (WorldLayout.RegionGroup group : WorldLayout.findRegionGroups(worldFolder)) {
+                items.add(Map.entry(worldFolder, group));
+            }
+        }
+        if (items.isEmpty()) {
+            System.err.println("No region files found!");
+            System.exit(1);
+        }
+        Metrics.start("hotspots", items.size());
+        final PriorityQueue<Hotspot> heap = new PriorityQueue<>(Math.min(top, 1024) + 1, BY_SIZE);
+        items.parallelStream().forEach(item -> {
+                final List<Hotspot> local = scanGroup(item.getKey(), item.getValue(), top);
+                synchronized (heap) {
+                    for (Hotspot hotspot : local) offer(heap, hotspot, top);
+                }
+                Metrics.REGIONS_DONE.increment();
+            });
+        final List<Hotspot> hotspots = new ArrayList<>(heap);
+        hotspots.sort(BY_SIZE.reversed());
+        final List<Map<String, Object>> rows = hotspots.parallelStream()
+            .map(HotspotFinder::inspect)
+            .toList();
+        Metrics.stop();
+        final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+        final PrintStream out = Main.bufferedStdout();
+        for (Map<String, Object> row : rows) {
+            out.println(gson.toJson(row));
+        }
+        out.flush();
+        System.err.println(rows.size() + " hotspots in " + items.size() + " regions");
+    }
+
+    /**
+     * Keep the largest chunks in a min heap of bounded size.
+     */
+    private static void offer(PriorityQueue<Hotspot> heap, Hotspot hotspot, int top) {
+        if (heap.size() < top) {
+            heap.add(hotspot);
+        } else if (top > 0 && BY_SIZE.compare(hotspot, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(hotspot);
+        }
+    }
+
+    /**
+     * The largest chunks of one region group, from its headers.
+     */
+    private static List<Hotspot> scanGroup(File world, WorldLayout.RegionGroup group, int top) {
+        final RegionHeaderTable region = readHeader(group.get(WorldLayout.RegionKind.REGION));
+        final RegionHeaderTable entities = readHeader(group.get(WorldLayout.RegionKind.ENTITIES));
+        if (region == null && entities == null) return List.of();
+        final PriorityQueue<Hotspot> heap = new PriorityQueue<>(Math.min(top, 1024) + 1, BY_SIZE);
+        for (int z = 0; z < 32; z += 1) {
+            for (int x = 0; x < 32; x += 1) {
+                final int regionSectors = region != null ? region.getChunkSectorCount(x, z) : 0;
+                final int entitySectors = entities != null ? entities.getChunkSectorCount(x, z) : 0;
+                if (regionSectors + entitySectors == 0) continue;
+                offer(heap, new Hotspot(world, group, x, z, regionSectors, entitySectors), top);
+            }
+        }
+        return new ArrayList<>(heap);
+    }
+
+    private static RegionHeaderTable readHeader(WorldLayout.RegionFile regionFile) {
+        if (regionFile == null || regionFile.file().length() < RegionHeaderTable.HEADER_SIZE) return null;
+        try {
+            return RegionHeaderTable.read(regionFile.file());
+        } catch (IOException ioe) {
+            System.err.println(regionFile.file() + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decode the chunk in all files of its group and count entities,
+     * block entities and scheduled ticks.
+     */
+    private static Map<String, Object> inspect(Hotspot hotspot) {
+        final Map<String, Object> row = new LinkedHashMap<>();
+        row.put("world", hotspot.world().getPath());
+        row.put("dimension", hotspot.group().dimension().name());
+        row.put("chunk_x", hotspot.chunkX());
+        row.put("chunk_z", hotspot.chunkZ());
+        row.put("bytes", (long) hotspot.sectors() * RegionFileHeader.KIB);
+        row.put("region_bytes", (long) hotspot.regionSectors() * RegionFileHeader.KIB);
+        row.put("entities_bytes", (long) hotspot.entitySectors() * RegionFileHeader.KIB);
+        int entities = 0;
+        int blockEntities = 0;
+        int ticks = 0;
+        final Map<String, Integer> entityTypes = new LinkedHashMap<>();
+        for (WorldLayout.RegionFile regionFile : hotspot.group().files()) {
+            if (regionFile.kind() == WorldLayout.RegionKind.POI) continue;
+            final ChunkPayload payload;
+            try {
+                payload = readPayload(regionFile.file(), hotspot.x(), hotspot.z());
+            } catch (IOException ioe) {
+                Metrics.CHUNKS_FAILED.increment();
+                row.put("error", regionFile.file() + ": " + ioe.getMessage());
+                continue;
+            }
+            if (payload == null) continue;
+            final MemoryGovernor.Lease lease = MemoryGovernor.acquireRawChunk(payload);
+            try {
+                final RawNBT nbt = new RawNBT(Main.inflateChunk(payload));
+                Metrics.CHUNKS_DECODED.increment();
+                final RawNBT.Ref root = nbt.root();
+                for (String path : ChunkTransformer.ENTITY_LISTS) {
+                    for (RawNBT.Ref entity : nbt.elements(nbt.path(root, path))) {
+                        entities += 1;
+                        final String id = nbt.getString(nbt.get(entity, "id"));
+                        if (id != null) entityTypes.merge(id, 1, Integer::sum);
+                    }
+                }
+                for (String path : ChunkTransformer.BLOCK_ENTITY_LISTS) {
+                    blockEntities += nbt.elements(nbt.path(root, path)).size();
+                }
+                for (String path : TICK_LISTS) {
+                    final RawNBT.Ref list = nbt.path(root, path);
+                    if (list != null && list.type() == RawNBT.LIST) ticks += nbt.size(list);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Corrupt data surfaces as a runtime exception of the cursor
+                Metrics.CHUNKS_FAILED.increment();
+                row.put("error", regionFile.file() + ": " + e);
+            } finally {
+                lease.close();
+            }
+        }
+        row.put("entities", entities);
+        row.put("block_entities", blockEntities);
+        row.put("tile_ticks", ticks);
+        final Map<String, Integer> sortedTypes = new LinkedHashMap<>();
+        entityTypes.entrySet().stream()
+            .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+            .forEach(entry -> sortedTypes.put(entry.getKey(), entry.getValue()));
+        row.put("entity_types", sortedTypes);
+        return row;
+    }
+
+    /**
+     * @return the compressed chunk or null if it does not exist
+     */
+    private static ChunkPayload readPayload(File file, int x, int z) throws IOException {
+        if (file.length() < RegionHeaderTable.HEADER_SIZE) return null;
+        final ChunkPayload payload;
+        final long readStart = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            payload = RegionHeaderTable.read(channel).readChunk(channel, x, z);
+        }
+        if (payload == null) return null;
+        Metrics.READ.since(readStart);
+        Metrics.BYTES_READ.add(payload.getStoredLength());
+        return payload;
+    }
+
+    private HotspotFinder() { }
+}
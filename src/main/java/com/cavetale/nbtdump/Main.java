@@ -1,17 +1,30 @@
 package com.cavetale.nbtdump;
 
+import com.cavetale.nbtdump.region.ChunkCompression;
+import com.cavetale.nbtdump.region.ChunkPayload;
+import com.cavetale.nbtdump.region.RegionChunk;
+import com.cavetale.nbtdump.region.RegionChunkReader;
+import com.cavetale.nbtdump.region.RegionHeaderTable;
 import com.cavetale.nbtdump.region.RandomAccessRegionFile;
 import com.github.steveice10.opennbt.NBTIO;
 import com.github.steveice10.opennbt.conversion.ConverterRegistry;
 import com.github.steveice10.opennbt.tag.builtin.Tag;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -20,7 +33,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
 
 public final class Main {
     private Main() { }
@@ -42,12 +54,38 @@ public final class Main {
         boolean printChunkCoords;
         String outputPath;
         String structures;
+        boolean structRefs;
         String guessWorldBorder;
         String cutWorldBorder;
         int cutWorldBorderPadding;
         boolean simulate;
+        boolean allDimensions;
         boolean scriptDefined;
         String debugRegionFile;
+        int progressInterval = 10;
+        boolean progressSpecified;
+        String metricsPath;
+        boolean printFileName;
+        int shards;
+        String shardBy = "file";
+        String compression;
+        int concurrency = 64;
+        String transform;
+        String queryStructures;
+        String regionStats;
+        String hotspots;
+        int top = 20;
+        String format;
+        StructureQuery.Query structureQuery = new StructureQuery.Query();
+        List<Edit> edits;
+
+        /**
+         * Dumping stays quiet unless progress or metrics were asked
+         * for; scripts always report.
+         */
+        boolean isMetricsRequested() {
+            return progressSpecified || metricsPath != null;
+        }
 
         private void ensureSingleScript() {
             if (scriptDefined) {
@@ -72,6 +110,33 @@ public final class Main {
             this.path = path;
             this.value = value;
         }
+
+        boolean test(Object actual) {
+            switch (comparison) {
+            case EQUAL: return Objects.equals(value, actual);
+            case NOT_EQUAL: return !Objects.equals(value, actual);
+            default: throw new IllegalStateException("comparison=" + comparison);
+            }
+        }
+    }
+
+    enum EditType {
+        DELETE,
+        SET,
+        DROP_ENTITY,
+        DROP_BLOCK_ENTITY;
+    }
+
+    static final class Edit {
+        final EditType type;
+        final String path;
+        final Object value;
+
+        Edit(final EditType type, final String path, final Object value) {
+            this.type = type;
+            this.path = path;
+            this.value = value;
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -89,64 +154,111 @@ public final class Main {
             System.exit(0);
             return;
         }
+        Metrics.reportInterval = flags.progressInterval;
+        if (flags.metricsPath != null) Metrics.summaryFile = new File(flags.metricsPath);
         if (flags.structures != null) {
-            StructureFinder.findStructures(new File(flags.structures));
+            StructureFinder.findStructures(findWorlds(flags.structures, flags), flags.structRefs);
         } else if (flags.guessWorldBorder != null) {
-            WorldBorderGuesser.guessWorldBorder(new File(flags.guessWorldBorder));
+            WorldBorderGuesser.guessWorldBorder(findWorlds(flags.guessWorldBorder, flags));
         } else if (flags.cutWorldBorder != null) {
-            WorldBorderCutter.cutWorldBorder(new File(flags.cutWorldBorder), flags.cutWorldBorderPadding, flags.simulate);
+            WorldBorderCutter.cutWorldBorder(findWorlds(flags.cutWorldBorder, flags), flags.cutWorldBorderPadding, flags.allDimensions, flags.simulate);
+        } else if (flags.hotspots != null) {
+            HotspotFinder.findHotspots(findWorlds(flags.hotspots, flags), flags.top);
+        } else if (flags.regionStats != null) {
+            RegionStats.regionStats(findWorlds(flags.regionStats, flags), flags.format);
+        } else if (flags.queryStructures != null) {
+            StructureQuery.queryStructures(findWorlds(flags.queryStructures, flags), flags.structureQuery, flags.pretty);
+        } else if (flags.transform != null) {
+            ChunkTransformer.transform(findWorlds(flags.transform, flags), flags.conditions, flags.edits, flags.simulate);
         } else if (flags.debugRegionFile != null) {
             new RandomAccessRegionFile(new File(flags.debugRegionFile), "r").debug();
         } else {
             printTag(flags);
         }
+        Metrics.stop();
         System.exit(0);
     }
 
+    /**
+     * The worlds of a script: its folder argument plus any further
+     * folders or manifest files given as plain arguments.
+     */
+    static List<File> findWorlds(String first, Flags flags) throws IOException {
+        List<String> args = new ArrayList<>();
+        args.add(first);
+        if (flags.paths != null) args.addAll(flags.paths);
+        List<File> result = WorldLayout.findWorlds(args);
+        if (result.isEmpty()) {
+            System.err.println("No worlds found!");
+            System.exit(1);
+        }
+        return result;
+    }
+
     static void printTag(Flags flags) throws Exception {
         if (flags.paths != null) {
+            List<String> paths = new ArrayList<>();
+            List<File> datFiles = new ArrayList<>();
             for (String path : flags.paths) {
+                if (DatFileDumper.isBatchPath(path)) {
+                    datFiles.addAll(DatFileDumper.expand(path));
+                } else {
+                    paths.add(path);
+                }
+            }
+            if (flags.shards > 0) {
+                dumpSharded(paths, datFiles, flags);
+                Metrics.stop();
+                System.exit(0);
+            }
+            if (!datFiles.isEmpty()) {
+                DatFileDumper.dump(datFiles, flags, null);
+            }
+            final long regionCount = paths.stream().filter(p -> p.endsWith(".mca")).count();
+            if (regionCount > 0 && flags.isMetricsRequested()) Metrics.start("dump", regionCount);
+            Path base = OutputSink.commonBase(paths.stream().map(File::new).toList());
+            for (String path : paths) {
                 File file = new File(path);
                 if (!file.exists()) {
                     System.err.println("File not found: " + file);
                     continue;
                 }
                 PrintStream out = flags.outputPath != null
-                    ? new PrintStream(new File(flags.outputPath + "/" + file.getName()))
+                    ? OutputSink.openPrintStream(new File(flags.outputPath), OutputSink.outputName(base, file), flags.compression)
                     : System.out;
+                final String filePrefix = filePrefix(flags, path);
                 if (path.endsWith(".dat")) {
                     boolean gzip = flags.gzipSpecified ? flags.gzip : true;
                     boolean littleEndian = flags.endianSpecified ? flags.littleEndian : false;
-                    Tag tag = NBTIO.readFile(file, gzip, littleEndian);
-                    printTag(out, tag, flags);
+                    write(out, renderFile(file, gzip, littleEndian, flags, filePrefix));
                 } else if (path.endsWith(".mca")) {
-                    RandomAccessFile raf = new RandomAccessFile(file, "r");
-                    if (raf.length() == 0L) {
+                    if (file.length() == 0L) {
                         System.err.println(path + ": File is empty");
-                        continue;
-                    }
-                    if (flags.chunkSpecified) {
-                        Tag tag = getAnvilTag(raf, flags.chunkX, flags.chunkZ);
-                        printTag(out, tag, flags);
+                    } else if (flags.chunkSpecified) {
+                        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                            ChunkPayload payload = RegionHeaderTable.read(channel).readChunk(channel, flags.chunkX, flags.chunkZ);
+                            if (payload != null) write(out, renderChunk(payload, flags, filePrefix + chunkPrefix(flags, flags.chunkX, flags.chunkZ)));
+                        }
                     } else {
-                        for (int z = 0; z < 32; z += 1) {
-                            for (int x = 0; x < 32; x += 1) {
-                                int location;
+                        final MemoryGovernor.Lease lease = MemoryGovernor.acquireRegion(file.length());
+                        try {
+                            for (RegionChunk chunk : RegionPrefetcher.load(file)) {
+                                byte[] bytes;
                                 try {
-                                    location = getChunkLocation(raf, x, z);
+                                    bytes = renderChunk(chunk.payload(), flags, filePrefix + chunkPrefix(flags, chunk.x(), chunk.z()));
                                 } catch (IOException ioe) {
-                                    System.err.println(path + ": Chunk location failed: " + x + " " + z);
+                                    System.err.println(path + ": Chunk decode failed: " + chunk.x() + " " + chunk.z());
                                     continue;
                                 }
-                                if (location == 0) continue;
-                                Tag tag = getAnvilTag(raf, x, z);
-                                printTag(out, tag, flags, (flags.printChunkCoords ? x + "," + z + "," : ""));
+                                write(out, bytes);
                             }
+                        } finally {
+                            lease.close();
                         }
                     }
+                    Metrics.REGIONS_DONE.increment();
                 } else {
-                    Tag tag = NBTIO.readFile(file, flags.gzip, flags.littleEndian);
-                    printTag(out, tag, flags);
+                    write(out, renderFile(file, flags.gzip, flags.littleEndian, flags, filePrefix));
                 }
                 if (out != System.out) {
                     out.close();
@@ -156,31 +268,167 @@ public final class Main {
             InputStream inp = System.in;
             if (flags.gzip) inp = new GZIPInputStream(inp);
             boolean littleEndian = flags.endianSpecified ? flags.littleEndian : false;
-            Tag tag = NBTIO.readTag(inp, littleEndian);
-            printTag(System.out, tag, flags);
+            if (RawFormatter.Format.of(flags.format) == RawFormatter.Format.JSON) {
+                Tag tag = NBTIO.readTag(inp, littleEndian);
+                printTag(System.out, tag, flags);
+            } else {
+                if (littleEndian) throw new IllegalArgumentException("Binary formats require big endian input");
+                write(System.out, RawFormatter.format(inp.readAllBytes(), flags, filePrefix(flags, "-")));
+            }
+            System.out.flush();
         }
+        Metrics.stop();
         System.exit(0);
     }
 
+    /**
+     * Dump all inputs into the shard files of the output folder.
+     * Region files are decoded and rendered in parallel, and their
+     * output is handed to the sink in blocks of bounded size.
+     */
+    static void dumpSharded(List<String> paths, List<File> datFiles, Flags flags) throws Exception {
+        List<File> regionFiles = new ArrayList<>();
+        List<File> otherFiles = new ArrayList<>();
+        List<File> allDatFiles = new ArrayList<>(datFiles);
+        for (String path : paths) {
+            File file = new File(path);
+            if (!file.exists()) {
+                System.err.println("File not found: " + file);
+            } else if (path.endsWith(".mca")) {
+                regionFiles.add(file);
+            } else if (path.endsWith(".dat")) {
+                allDatFiles.add(file);
+            } else {
+                otherFiles.add(file);
+            }
+        }
+        try (OutputSink sink = new OutputSink(new File(flags.outputPath), flags.shards, flags.compression,
+                                                     RawFormatter.Format.of(flags.format).fileType)) {
+            if (!regionFiles.isEmpty() && flags.isMetricsRequested()) Metrics.start("dump", regionFiles.size());
+            RegionPrefetcher.run(regionFiles, file -> file, (file, chunks) -> {
+                    final String filePrefix = filePrefix(flags, file.getPath());
+                    final String key = shardKey(file, flags);
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    for (RegionChunk chunk : chunks) {
+                        if (flags.chunkSpecified && (chunk.x() != flags.chunkX || chunk.z() != flags.chunkZ)) continue;
+                        byte[] bytes;
+                        try {
+                            bytes = renderChunk(chunk.payload(), flags, filePrefix + chunkPrefix(flags, chunk.x(), chunk.z()));
+                        } catch (IOException ioe) {
+                            System.err.println(file + ": Chunk decode failed: " + chunk.x() + " " + chunk.z());
+                            continue;
+                        }
+                        if (bytes == null) continue;
+                        baos.write(bytes);
+                        if (baos.size() >= OutputSink.BUFFER_SIZE) {
+                            sink.write(key, baos.toByteArray());
+                            baos.reset();
+                        }
+                    }
+                    sink.write(key, baos.toByteArray());
+                    Metrics.REGIONS_DONE.increment();
+                });
+            if (!allDatFiles.isEmpty()) {
+                DatFileDumper.dump(allDatFiles, flags, sink);
+            }
+            for (File file : otherFiles) {
+                byte[] bytes = renderFile(file, flags.gzip, flags.littleEndian, flags, filePrefix(flags, file.getPath()));
+                if (bytes != null) sink.write(shardKey(file, flags), bytes);
+            }
+        }
+    }
+
+    static String shardKey(File file, Flags flags) {
+        if ("dimension".equals(flags.shardBy)) {
+            File folder = file.getAbsoluteFile().getParentFile();
+            File dimension = folder != null ? folder.getParentFile() : null;
+            return dimension != null ? dimension.getName() : "";
+        }
+        return file.getPath();
+    }
+
+    /**
+     * The line prefix naming the input file, if requested.  Records
+     * are always keyed by it.
+     */
+    static String filePrefix(Flags flags, String path) {
+        return flags.printFileName || RawFormatter.Format.of(flags.format) == RawFormatter.Format.RECORDS
+            ? path + ","
+            : "";
+    }
+
+    /**
+     * The line prefix naming the chunk, if requested.  Records are
+     * always keyed by it.
+     */
+    static String chunkPrefix(Flags flags, int x, int z) {
+        return flags.printChunkCoords || RawFormatter.Format.of(flags.format) == RawFormatter.Format.RECORDS
+            ? x + "," + z + ","
+            : "";
+    }
+
+    /**
+     * Stdout with a large buffer for bulk output.  The caller must
+     * flush it when done.
+     */
+    static PrintStream bufferedStdout() {
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    }
+
+    static void write(PrintStream out, byte[] bytes) {
+        if (bytes != null) out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Render a chunk in the selected output format.
+     * @return the output or null if filtered out
+     */
+    static byte[] renderChunk(ChunkPayload payload, Flags flags, String prefix) throws IOException {
+        try (MemoryGovernor.Lease lease = MemoryGovernor.acquireChunk(payload)) {
+            if (!lease.streaming && RawFormatter.Format.of(flags.format) == RawFormatter.Format.JSON) {
+                String line = formatTag(decodeChunk(payload), flags, prefix);
+                return line != null ? (line + "\n").getBytes(StandardCharsets.UTF_8) : null;
+            }
+            final byte[] raw = inflateChunk(payload);
+            Metrics.CHUNKS_DECODED.increment();
+            return RawFormatter.format(raw, flags, prefix);
+        }
+    }
+
+    /**
+     * Render a standalone NBT file in the selected output format.
+     * @return the output or null if filtered out
+     */
+    static byte[] renderFile(File file, boolean gzip, boolean littleEndian, Flags flags, String prefix) throws IOException {
+        if (RawFormatter.Format.of(flags.format) == RawFormatter.Format.JSON) {
+            String line = formatTag(NBTIO.readFile(file, gzip, littleEndian), flags, prefix);
+            return line != null ? (line + "\n").getBytes(StandardCharsets.UTF_8) : null;
+        }
+        if (littleEndian) throw new IllegalArgumentException("Binary formats require big endian input");
+        try (InputStream inp = gzip ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file)) {
+            return RawFormatter.format(inp.readAllBytes(), flags, prefix);
+        }
+    }
+
     static void printTag(PrintStream out, Tag tag, Flags flags) {
         printTag(out, tag, flags, "");
     }
 
     static void printTag(PrintStream out, Tag tag, Flags flags, String prefix) {
-        if (tag == null) return;
+        String line = formatTag(tag, flags, prefix);
+        if (line != null) out.println(line);
+    }
+
+    /**
+     * Apply conditions and projections and render the tag as JSON.
+     * @return the line or null if the tag was filtered out
+     */
+    static String formatTag(Tag tag, Flags flags, String prefix) {
+        if (tag == null) return null;
         Object o = ConverterRegistry.convertToValue(tag);
         if (flags.conditions != null) {
             for (Condition condition : flags.conditions) {
-                Object value = path(o, condition.path);
-                switch (condition.comparison) {
-                case EQUAL:
-                    if (!Objects.equals(condition.value, value)) return;
-                    break;
-                case NOT_EQUAL:
-                    if (Objects.equals(condition.value, value)) return;
-                    break;
-                default: throw new IllegalStateException("comparison=" + condition.comparison);
-                }
+                if (!condition.test(path(o, condition.path))) return null;
             }
         }
         if (flags.gets != null) {
@@ -201,14 +449,17 @@ public final class Main {
             }
         }
         if (flags.skipEmpty) {
-            if (o == null) return;
-            if (o instanceof Map map && map.isEmpty()) return;
-            if (o instanceof List list && list.isEmpty()) return;
+            if (o == null) return null;
+            if (o instanceof Map map && map.isEmpty()) return null;
+            if (o instanceof List list && list.isEmpty()) return null;
         }
+        final long serializeStart = System.nanoTime();
         Gson gson = flags.pretty
             ? new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create()
             : new GsonBuilder().disableHtmlEscaping().create();
-        out.println(prefix + gson.toJson(o));
+        String json = gson.toJson(o);
+        Metrics.SERIALIZE.since(serializeStart);
+        return prefix + json;
     }
 
     static Object path(Object current, String path) {
@@ -232,51 +483,21 @@ public final class Main {
         }
     }
 
-    static int getChunkLocation(RandomAccessFile raf, int chunkX, int chunkZ) throws IOException {
-        long offset = 4L * (long) (chunkX + chunkZ * 32);
-        raf.seek(offset);
-        int location = raf.readInt();
-        return location;
-    }
-
-    static int getOffset(int location) {
-        return (location & 0xffffff00) >> 8;
+    static Tag decodeChunk(ChunkPayload payload) throws IOException {
+        final byte[] raw = inflateChunk(payload);
+        final long parseStart = System.nanoTime();
+        final Tag tag = NBTIO.readTag(new ByteArrayInputStream(raw));
+        Metrics.PARSE.since(parseStart);
+        Metrics.CHUNKS_DECODED.increment();
+        return tag;
     }
 
-    static int getSectorCount(int location) {
-        return location & 0xff;
-    }
-
-    static Tag getAnvilTag(RandomAccessFile raf, int x, int z) throws Exception {
-        int location = getChunkLocation(raf, x, z);
-        return getAnvilTag(raf, location);
-    }
-
-    static Tag getAnvilTag(RandomAccessFile raf, int location) throws Exception {
-        int offset = getOffset(location);
-        raf.seek((long) offset * 4096L);
-        int length = raf.readInt();
-        int compressionType = (int) raf.readByte();
-        byte[] compressed = new byte[length];
-        int read = 0;
-        while (read < length) {
-            try {
-                int res = raf.read(compressed, read, length - read);
-                if (res < 0) return null;
-                read += res;
-            } catch (Exception e) {
-                System.err.println("read=" + read + " length=" + length);
-                e.printStackTrace();
-                return null;
-            }
-        }
-        InputStream inp = new ByteArrayInputStream(compressed);
-        if (compressionType == 1) {
-            inp = new GZIPInputStream(inp);
-        } else if (compressionType == 2) {
-            inp = new InflaterInputStream(inp);
-        }
-        return NBTIO.readTag(inp);
+    static byte[] inflateChunk(ChunkPayload payload) throws IOException {
+        final long decompressStart = System.nanoTime();
+        final byte[] raw = ChunkCompression.decompress(payload.compressionType(), payload.data());
+        Metrics.DECOMPRESS.since(decompressStart);
+        Metrics.BYTES_DECOMPRESSED.add(raw.length);
+        return raw;
     }
 
     static Flags parseFlags(Iterator<String> iter) {
@@ -299,6 +520,9 @@ public final class Main {
                 continue;
             }
         }
+        if (flags.shards > 0 && flags.outputPath == null) {
+            throw new IllegalArgumentException("--shards requires an output folder");
+        }
         return flags;
     }
 
@@ -378,6 +602,9 @@ public final class Main {
             flags.ensureSingleScript();
             flags.structures = iter.next();
             break;
+        case "structrefs":
+            flags.structRefs = true;
+            break;
         case "guessworldborder":
             flags.ensureSingleScript();
             flags.guessWorldBorder = iter.next();
@@ -387,6 +614,9 @@ public final class Main {
             flags.cutWorldBorder = iter.next();
             flags.cutWorldBorderPadding = Integer.parseInt(iter.next());
             break;
+        case "alldimensions":
+            flags.allDimensions = true;
+            break;
         case "simulate":
             flags.simulate = true;
             break;
@@ -394,6 +624,120 @@ public final class Main {
             flags.ensureSingleScript();
             flags.debugRegionFile = iter.next();
             break;
+        case "regionstats":
+            flags.ensureSingleScript();
+            flags.regionStats = iter.next();
+            break;
+        case "hotspots":
+            flags.ensureSingleScript();
+            flags.hotspots = iter.next();
+            break;
+        case "top":
+            flags.top = Integer.parseInt(iter.next());
+            if (flags.top < 1 || flags.top > 1000000) {
+                throw new IllegalArgumentException("Invalid top count: " + flags.top);
+            }
+            break;
+        case "format":
+            if (flags.format != null) {
+                throw new IllegalArgumentException("Format specified more than once");
+            }
+            flags.format = iter.next();
+            RawFormatter.Format.of(flags.format);
+            break;
+        case "querystructures":
+            flags.ensureSingleScript();
+            flags.queryStructures = iter.next();
+            break;
+        case "box":
+            flags.structureQuery.box = true;
+            flags.structureQuery.ax = Integer.parseInt(iter.next());
+            flags.structureQuery.az = Integer.parseInt(iter.next());
+            flags.structureQuery.bx = Integer.parseInt(iter.next());
+            flags.structureQuery.bz = Integer.parseInt(iter.next());
+            break;
+        case "near":
+            flags.structureQuery.near = true;
+            flags.structureQuery.x = Integer.parseInt(iter.next());
+            flags.structureQuery.z = Integer.parseInt(iter.next());
+            flags.structureQuery.radius = Integer.parseInt(iter.next());
+            break;
+        case "type":
+            if (flags.structureQuery.types == null) flags.structureQuery.types = new ArrayList<>();
+            flags.structureQuery.types.add(iter.next());
+            break;
+        case "transform":
+            flags.ensureSingleScript();
+            flags.transform = iter.next();
+            break;
+        case "delete":
+            if (flags.edits == null) flags.edits = new ArrayList<>();
+            flags.edits.add(new Edit(EditType.DELETE, iter.next(), null));
+            break;
+        case "set": {
+            if (flags.edits == null) flags.edits = new ArrayList<>();
+            String path = iter.next();
+            Gson gson = new Gson();
+            Object value = gson.fromJson(iter.next(), Object.class);
+            flags.edits.add(new Edit(EditType.SET, path, value));
+            break;
+        }
+        case "dropentity":
+            if (flags.edits == null) flags.edits = new ArrayList<>();
+            flags.edits.add(new Edit(EditType.DROP_ENTITY, iter.next(), null));
+            break;
+        case "dropblockentity":
+            if (flags.edits == null) flags.edits = new ArrayList<>();
+            flags.edits.add(new Edit(EditType.DROP_BLOCK_ENTITY, iter.next(), null));
+            break;
+        case "prefetch":
+            RegionPrefetcher.prefetchDepth = Integer.parseInt(iter.next());
+            break;
+        case "iothreads":
+            RegionPrefetcher.ioThreads = Integer.parseInt(iter.next());
+            break;
+        case "maxgap":
+            RegionPrefetcher.readOptions = new RegionChunkReader.Options(Integer.parseInt(iter.next()),
+                                                                         RegionPrefetcher.readOptions.maxRunSectors());
+            break;
+        case "memory":
+            MemoryGovernor.setBudget(Long.parseLong(iter.next()) << 20);
+            break;
+        case "streamthreshold":
+            MemoryGovernor.streamThreshold = Long.parseLong(iter.next()) << 10;
+            break;
+        case "printfilename":
+            flags.printFileName = true;
+            break;
+        case "concurrency":
+            flags.concurrency = Integer.parseInt(iter.next());
+            break;
+        case "shards":
+            flags.shards = Integer.parseInt(iter.next());
+            if (flags.shards < 1) {
+                throw new IllegalArgumentException("Invalid shard count: " + flags.shards);
+            }
+            break;
+        case "shardby":
+            flags.shardBy = iter.next();
+            if (!"file".equals(flags.shardBy) && !"dimension".equals(flags.shardBy)) {
+                throw new IllegalArgumentException("Invalid shard key: " + flags.shardBy);
+            }
+            break;
+        case "compress":
+            flags.compression = iter.next();
+            OutputSink.extension(flags.compression);
+            break;
+        case "progress":
+            flags.progressInterval = Integer.parseInt(iter.next());
+            flags.progressSpecified = true;
+            break;
+        case "metrics":
+            if (flags.metricsPath != null) {
+                throw new IllegalArgumentException("Metrics path specified more than once");
+            }
+            flags.metricsPath = iter.next();
+            break;
         default:
             throw new IllegalArgumentException("Invalid flag: " + it);
         }
@@ -404,6 +748,8 @@ public final class Main {
         out.println("File Formats");
         out.println("  *.dat\t\tAssume gzip compressed NBT file");
         out.println("  *.mca\t\tAssume anvil file format");
+        out.println("  FOLDER\t\tAll *.dat files within, read concurrently");
+        out.println("  glob:PATTERN\tAll *.dat files matching PATTERN, read concurrently");
         out.println("Options");
         out.println("  -h, --help\t\t\tPrint help and exit");
         out.println("  -c, --chunk <X> <Z>\t\tSpecify chunk index for anvil files");
@@ -417,10 +763,39 @@ public final class Main {
         out.println("  -s, --skipempty\t\tSkip empty or null tags");
         out.println("  -p, --printchunkcoords\tPrint chunk coordinates");
         out.println("  -o, --output\t\t\tPrint each file to an output folder");
-        out.println("  --simulate\t\t\tSimulate only mode for invasive scripts");
+        out.println("  --shards N\t\t\tWrite the output folder as N shard files");
+        out.println("  --shardby KEY\t\t\tShard by file or dimension (default file)");
+        out.println("  --compress gzip\t\tCompress output files");
+        out.println("  --printfilename\t\tPrefix each line with the file name");
+        out.println("  --concurrency N\t\tFiles read at once from folders and globs (default 64)");
+        out.println("  --format FORMAT\t\tOutput format: json, nbt, snbt, records; json, csv (--regionstats)");
+        out.println("  --simulate\t\t\tSimulate only mode for invasive scripts; --cutworldborder prints its plan as JSON");
+        out.println("  --alldimensions\t\t--cutworldborder: also cut the other dimensions at the scaled border");
+        out.println("  --structrefs\t\t\t--structures: also fill the legacy struct_refs table");
+        out.println("  --box <AX> <AZ> <BX> <BZ>\tQuery: structures intersecting this block area");
+        out.println("  --near <X> <Z> <RADIUS>\tQuery: structures within RADIUS blocks, nearest first");
+        out.println("  --type <TYPE>\t\t\tQuery: only structures of TYPE (repeatable)");
+        out.println("  --top N\t\t\tHotspots: number of chunks to report, up to 1000000 (default 20)");
+        out.println("  --delete <PATH>\t\tTransform: delete the value at PATH (repeatable)");
+        out.println("  --set <PATH> <VALUE>\t\tTransform: replace the existing value at PATH, keeping its type (repeatable)");
+        out.println("  --dropentity <ID>\t\tTransform: remove entities with ID (repeatable)");
+        out.println("  --dropblockentity <ID>\tTransform: remove block entities with ID (repeatable)");
+        out.println("  --prefetch N\t\t\tRegion files to load ahead of the workers");
+        out.println("  --iothreads N\t\t\tThreads loading region files (default 4)");
+        out.println("  --maxgap SECTORS\t\tRead through gaps up to this size (default 4)");
+        out.println("  --memory MIB\t\t\tBudget for chunk data in flight (default half the heap)");
+        out.println("  --streamthreshold KIB\t\tStream chunks inflating beyond this instead of building tag trees (default 2048)");
+        out.println("  --progress SECONDS\t\tProgress report interval, 0 to disable (default 10)");
+        out.println("  --metrics FILE\t\tWrite a JSON metrics summary when done");
         out.println("  --structures FOLDER\t\t(Script) Store world structures in SQLite");
         out.println("  --guessworldborder FOLDER\t(Script) Find non-empty chunks and suggest a world border");
         out.println("  --cutworldborder FOLDER PADDING\t(Script) Delete region files, delete chunks outside the world border");
+        out.println("  --regionstats FOLDER\t\t(Script) Region file statistics from headers only");
+        out.println("  --hotspots FOLDER\t\t(Script) Find the largest chunks from headers and count their contents");
+        out.println("  --querystructures FOLDER\t(Script) Query structures stored by --structures");
+        out.println("  --transform FOLDER\t\t(Script) Apply edits to all chunks matching --eq/--neq");
         out.println("  --debugregionfile FILE\t(Script) Debug region file");
+        out.println("Scripts accept more world folders as further arguments.  A file in place");
+        out.println("of a folder is read as a manifest listing one world folder per line.");
     }
 }
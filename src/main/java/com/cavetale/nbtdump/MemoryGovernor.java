@@ -0,0 +1,140 @@
+package com.cavetale.nbtdump;
+
+import com.cavetale.nbtdump.region.ChunkCompression;
+import com.cavetale.nbtdump.region.ChunkPayload;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Global budget for chunk data in flight.  Loaded region files hold
+ * their compressed size until their worker is done.  Decoding a chunk
+ * holds an estimate of its inflated size, plus the tag tree built from
+ * it, derived from the chunk length header.  Chunks inflating beyond
+ * the streaming threshold never get a tag tree and are processed from
+ * the raw bytes instead.  Scripts which only ever read the raw bytes
+ * reserve the inflated size alone.
+ *
+ * Region and chunk leases draw from separate pools so that workers
+ * holding a region can always make progress.
+ */
+final class MemoryGovernor {
+    /** Share of the budget reserved for loaded region files. */
+    private static final int READ_SHARE_PERCENT = 25;
+    /** Assumed inflation of zlib chunks, whose size is not stored. */
+    private static final int ZLIB_RATIO = 8;
+    /** Heap used by a tag tree relative to its serialized size. */
+    private static final int TREE_FACTOR = 6;
+    /** Inflated size above which chunks are streamed. */
+    static long streamThreshold = 2L * 1024L * 1024L;
+    private static Pool reads;
+    private static Pool decodes;
+
+    static {
+        setBudget(Runtime.getRuntime().maxMemory() / 2L);
+    }
+
+    /**
+     * A lease on part of the budget, returned on close.
+     */
+    static final class Lease implements AutoCloseable {
+        private final Pool pool;
+        private final int permits;
+        final boolean streaming;
+
+        private Lease(final Pool pool, final int permits, final boolean streaming) {
+            this.pool = pool;
+            this.permits = permits;
+            this.streaming = streaming;
+        }
+
+        @Override
+        public void close() {
+            pool.semaphore.release(permits);
+        }
+    }
+
+    /**
+     * A semaphore counting KiB.  Requests larger than the pool are
+     * clamped, so a single huge item waits for the pool to drain and
+     * then runs alone.
+     */
+    private static final class Pool {
+        private final int capacity;
+        private final Semaphore semaphore;
+
+        Pool(final long bytes) {
+            this.capacity = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, bytes >> 10));
+            this.semaphore = new Semaphore(capacity);
+        }
+
+        Lease acquire(final long bytes, final boolean streaming) {
+            final int permits = (int) Math.max(1L, Math.min(capacity, (bytes + 1023L) >> 10));
+            if (!semaphore.tryAcquire(permits)) {
+                final long waitStart = System.nanoTime();
+                semaphore.acquireUninterruptibly(permits);
+                Metrics.MEMORY_WAIT.since(waitStart);
+            }
+            return new Lease(this, permits, streaming);
+        }
+    }
+
+    /**
+     * Set the total budget.  Must be called before any work starts.
+     */
+    static synchronized void setBudget(final long bytes) {
+        final long readBytes = bytes * READ_SHARE_PERCENT / 100L;
+        reads = new Pool(readBytes);
+        decodes = new Pool(bytes - readBytes);
+    }
+
+    /**
+     * Reserve the compressed size of a region file for as long as it
+     * is loaded.
+     */
+    static Lease acquireRegion(final long fileLength) {
+        return reads.acquire(fileLength, false);
+    }
+
+    /**
+     * Reserve memory for decoding a chunk.  The lease tells whether
+     * the chunk should be streamed rather than turned into a tag tree.
+     */
+    static Lease acquireChunk(final ChunkPayload payload) {
+        final long inflated = estimateInflatedSize(payload);
+        final boolean streaming = inflated > streamThreshold;
+        if (streaming) Metrics.CHUNKS_STREAMED.increment();
+        return decodes.acquire(streaming ? inflated : inflated * TREE_FACTOR, streaming);
+    }
+
+    /**
+     * Reserve memory for a chunk which is only ever read from its raw
+     * bytes, so no tag tree is accounted for.
+     */
+    static Lease acquireRawChunk(final ChunkPayload payload) {
+        return decodes.acquire(estimateInflatedSize(payload), true);
+    }
+
+    /**
+     * Uncompressed chunks know their size, gzip stores it in its
+     * trailer, and zlib is estimated from the compressed length.
+     */
+    static long estimateInflatedSize(final ChunkPayload payload) {
+        final byte[] data = payload.data();
+        switch (payload.compressionType()) {
+        case ChunkCompression.NONE:
+            return data.length;
+        case ChunkCompression.GZIP:
+            if (data.length >= 18) {
+                final int n = data.length;
+                return (data[n - 4] & 0xffL)
+                    | (data[n - 3] & 0xffL) << 8
+                    | (data[n - 2] & 0xffL) << 16
+                    | (data[n - 1] & 0xffL) << 24;
+            }
+            return (long) data.length * ZLIB_RATIO;
+        default:
+            return (long) data.length * ZLIB_RATIO;
+        }
+    }
+
+    private MemoryGovernor() { }
+}
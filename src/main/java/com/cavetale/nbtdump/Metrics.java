@@ -0,0 +1,192 @@
+package com.cavetale.nbtdump;
+
+import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide counters and latency histograms for the region scan
+ * paths.  Recording is a handful of LongAdder increments, so it stays
+ * enabled unconditionally.  The reporter prints rate and ETA to
+ * stderr while a scan is running.
+ */
+public final class Metrics {
+    public static final LongAdder BYTES_READ = new LongAdder();
+    public static final LongAdder BYTES_DECOMPRESSED = new LongAdder();
+    public static final LongAdder CHUNKS_DECODED = new LongAdder();
+    public static final LongAdder CHUNKS_FAILED = new LongAdder();
+    public static final LongAdder CHUNKS_STREAMED = new LongAdder();
+    public static final LongAdder REGIONS_DONE = new LongAdder();
+    public static final AtomicLong REGIONS_TOTAL = new AtomicLong();
+    public static final Histogram READ = new Histogram("read");
+    public static final Histogram DECOMPRESS = new Histogram("decompress");
+    public static final Histogram PARSE = new Histogram("parse");
+    public static final Histogram SERIALIZE = new Histogram("serialize");
+    public static final Histogram DB_WRITE = new Histogram("db_write");
+    public static final Histogram MEMORY_WAIT = new Histogram("memory_wait");
+    private static final Histogram[] HISTOGRAMS = {READ, DECOMPRESS, PARSE, SERIALIZE, DB_WRITE, MEMORY_WAIT};
+    private static ScheduledExecutorService reporter;
+    private static String label;
+    private static long startTime;
+    static int reportInterval = 10;
+    static File summaryFile;
+
+    /**
+     * A latency histogram with power of two nanosecond buckets.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 40;
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(final String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKETS; i += 1) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record the time passed since the given System.nanoTime().
+         */
+        public void since(final long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(final long nanos) {
+            final long value = Math.max(0L, nanos);
+            count.increment();
+            total.add(value);
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+            long old = max.get();
+            while (value > old && !max.compareAndSet(old, value)) {
+                old = max.get();
+            }
+        }
+
+        /**
+         * Upper bound of the bucket containing the given quantile, in
+         * nanoseconds.
+         */
+        public long quantile(final double q) {
+            final long n = count.sum();
+            if (n == 0L) return 0L;
+            final long rank = (long) Math.ceil(q * (double) n);
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i += 1) {
+                seen += buckets[i].sum();
+                if (seen >= rank) return Math.min(max.get(), 1L << i);
+            }
+            return max.get();
+        }
+
+        Map<String, Object> toMap() {
+            final Map<String, Object> result = new LinkedHashMap<>();
+            final long n = count.sum();
+            result.put("count", n);
+            result.put("total_ms", millis(total.sum()));
+            result.put("mean_us", n > 0 ? (double) total.sum() / (double) n / 1000.0 : 0.0);
+            result.put("p50_us", (double) quantile(0.5) / 1000.0);
+            result.put("p99_us", (double) quantile(0.99) / 1000.0);
+            result.put("max_us", (double) max.get() / 1000.0);
+            return result;
+        }
+    }
+
+    /**
+     * Start the periodic progress reporter.  The region total may be
+     * raised later via REGIONS_TOTAL as more files are discovered.
+     */
+    public static synchronized void start(final String theLabel, final long regionsTotal) {
+        label = theLabel;
+        REGIONS_TOTAL.addAndGet(regionsTotal);
+        if (reporter != null) return;
+        startTime = System.nanoTime();
+        if (reportInterval <= 0) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        reporter.scheduleAtFixedRate(() -> System.err.println(progressLine()), reportInterval, reportInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the reporter, print a final line unless progress reports
+     * are disabled, and write the JSON summary if one was requested.
+     */
+    public static synchronized void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        if (startTime == 0L) return;
+        if (reportInterval > 0) System.err.println(progressLine());
+        if (summaryFile != null) {
+            try (Writer writer = new FileWriter(summaryFile)) {
+                new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create().toJson(summary(), writer);
+            } catch (IOException ioe) {
+                System.err.println(summaryFile + ": " + ioe.getMessage());
+            }
+        }
+        startTime = 0L;
+    }
+
+    static String progressLine() {
+        final double seconds = Math.max(0.001, (double) (System.nanoTime() - startTime) / 1e9);
+        final long done = REGIONS_DONE.sum();
+        final long total = REGIONS_TOTAL.get();
+        final double mib = (double) BYTES_READ.sum() / (1024.0 * 1024.0);
+        final double rawMib = (double) BYTES_DECOMPRESSED.sum() / (1024.0 * 1024.0);
+        final long chunks = CHUNKS_DECODED.sum();
+        final StringBuilder sb = new StringBuilder();
+        sb.append("[").append(label).append("]")
+            .append(" regions:").append(done).append("/").append(total)
+            .append(" chunks:").append(chunks)
+            .append(String.format(" %.1f chunks/s", (double) chunks / seconds))
+            .append(String.format(" read:%.1fMiB/s", mib / seconds))
+            .append(String.format(" inflated:%.1fMiB/s", rawMib / seconds));
+        if (done > 0 && total > done) {
+            final long eta = (long) (seconds / (double) done * (double) (total - done));
+            sb.append(String.format(" eta:%d:%02d:%02d", eta / 3600L, (eta / 60L) % 60L, eta % 60L));
+        }
+        sb.append(String.format(" elapsed:%.0fs", seconds));
+        return sb.toString();
+    }
+
+    static Map<String, Object> summary() {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        final double seconds = (double) (System.nanoTime() - startTime) / 1e9;
+        result.put("label", label);
+        result.put("elapsed_s", seconds);
+        result.put("regions_done", REGIONS_DONE.sum());
+        result.put("regions_total", REGIONS_TOTAL.get());
+        result.put("chunks_decoded", CHUNKS_DECODED.sum());
+        result.put("chunks_failed", CHUNKS_FAILED.sum());
+        result.put("chunks_streamed", CHUNKS_STREAMED.sum());
+        result.put("bytes_read", BYTES_READ.sum());
+        result.put("bytes_decompressed", BYTES_DECOMPRESSED.sum());
+        for (Histogram histogram : HISTOGRAMS) {
+            result.put(histogram.name, histogram.toMap());
+        }
+        return result;
+    }
+
+    private static double millis(final long nanos) {
+        return (double) nanos / 1e6;
+    }
+
+    private Metrics() { }
+}
@@ -0,0 +1,149 @@
+package com.cavetale.nbtdump;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Write output lines into a fixed number of shard files in the output
+ * folder, keyed by a hash of the input file or dimension.  Every
+ * shard has its own writer thread doing the compression and I/O, so
+ * the scan workers only hand over finished blocks of text.  The
+ * amount of text waiting to be written is bounded.
+ */
+final class OutputSink implements Closeable {
+    static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_PENDING_BYTES = 64 << 20;
+    private final Shard[] shards;
+    private final Semaphore pending = new Semaphore(MAX_PENDING_BYTES);
+
+    private static final class Shard {
+        final File file;
+        final OutputStream out;
+        final ExecutorService writer;
+
+        Shard(final File file, final OutputStream out, final int index) {
+            this.file = file;
+            this.out = out;
+            this.writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "OutputSink-" + index));
+        }
+    }
+
+    /**
+     * @param fileType the file name extension of the output format
+     */
+    OutputSink(final File folder, final int shardCount, final String compression, final String fileType) throws IOException {
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i += 1) {
+            File file = new File(folder, String.format("part-%05d.%s%s", i, fileType, extension(compression)));
+            shards[i] = new Shard(file, openStream(file, compression), i);
+        }
+    }
+
+    static String extension(String compression) {
+        if (compression == null || "none".equals(compression)) return "";
+        if ("gzip".equals(compression)) return ".gz";
+        throw new IllegalArgumentException("Unsupported compression: " + compression);
+    }
+
+    /**
+     * Open a large buffered, optionally compressed stream.
+     */
+    static OutputStream openStream(File file, String compression) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE);
+        if ("gzip".equals(compression)) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        } else {
+            extension(compression);
+        }
+        return out;
+    }
+
+    /**
+     * Open the output file of one input file, appending the extension
+     * of the compression.
+     */
+    static PrintStream openPrintStream(File folder, String name, String compression) throws IOException {
+        final File file = new File(folder, name + extension(compression));
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        return new PrintStream(openStream(file, compression), false, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The deepest folder containing all input files.  Output names
+     * relative to it keep files of the same name apart, such as the
+     * level.dat of several worlds.
+     */
+    static Path commonBase(List<File> files) {
+        Path base = null;
+        for (File file : files) {
+            Path parent = file.toPath().toAbsolutePath().normalize().getParent();
+            if (base == null) {
+                base = parent;
+            } else {
+                while (!parent.startsWith(base)) base = base.getParent();
+            }
+        }
+        return base;
+    }
+
+    /**
+     * The output name of an input file below the common base.
+     */
+    static String outputName(Path base, File file) {
+        return base.relativize(file.toPath().toAbsolutePath().normalize()).toString();
+    }
+
+    /**
+     * Queue output for the shard of the given key.  Blocks if too much
+     * output is waiting to be written.
+     */
+    void write(String key, byte[] bytes) {
+        if (bytes.length == 0) return;
+        final int permits = Math.min(bytes.length, MAX_PENDING_BYTES);
+        pending.acquireUninterruptibly(permits);
+        final Shard shard = shards[Math.floorMod(key.hashCode(), shards.length)];
+        shard.writer.execute(() -> {
+                try {
+                    shard.out.write(bytes);
+                } catch (IOException ioe) {
+                    System.err.println(shard.file + ": " + ioe.getMessage());
+                } finally {
+                    pending.release(permits);
+                }
+            });
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Shard shard : shards) {
+            shard.writer.shutdown();
+        }
+        IOException error = null;
+        for (Shard shard : shards) {
+            try {
+                shard.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                shard.out.close();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("Interrupted", ie));
+            } catch (IOException ioe) {
+                if (error == null) error = ioe;
+            }
+        }
+        if (error != null) throw error;
+    }
+}
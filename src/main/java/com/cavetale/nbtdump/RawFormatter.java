@@ -0,0 +1,151 @@
+package com.cavetale.nbtdump;
+
+import com.cavetale.nbtdump.nbt.RawJson;
+import com.cavetale.nbtdump.nbt.RawNBT;
+import com.cavetale.nbtdump.nbt.RawNBTWriter;
+import com.cavetale.nbtdump.nbt.SNBT;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Apply conditions and projections to uncompressed NBT and encode
+ * the result as NBT, SNBT, length prefixed records or JSON, without
+ * building a tag tree.  Selected subtrees are copied through as raw
+ * bytes.
+ */
+final class RawFormatter {
+    enum Format {
+        JSON("jsonl"),
+        /** Concatenated uncompressed named root tags. */
+        NBT("nbt"),
+        /** One line of stringified NBT per tag. */
+        SNBT("snbt"),
+        /**
+         * Per tag: int key length, UTF-8 key, int NBT length, NBT.
+         * The key is the file path, followed by the chunk coordinates
+         * for chunks, separated by commas.
+         */
+        RECORDS("rec");
+
+        final String fileType;
+
+        Format(final String fileType) {
+            this.fileType = fileType;
+        }
+
+        static Format of(String name) {
+            if (name == null) return JSON;
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Unsupported format: " + name);
+            }
+        }
+    }
+
+    /**
+     * @return the encoded output or null if filtered out
+     */
+    static byte[] format(byte[] raw, Main.Flags flags, String prefix) throws IOException {
+        final Format format = Format.of(flags.format);
+        final RawNBT nbt = new RawNBT(raw);
+        final RawNBT.Ref root = nbt.root();
+        if (root == null) return null;
+        if (flags.conditions != null) {
+            for (Main.Condition condition : flags.conditions) {
+                if (!condition.test(nbt.toValue(nbt.path(root, condition.path)))) return null;
+            }
+        }
+        // Select
+        final List<String> gets = flags.gets;
+        final RawNBT selected;
+        final RawNBT.Ref selectedRef;
+        if (gets == null) {
+            selected = nbt;
+            selectedRef = root;
+        } else if (gets.size() == 1) {
+            selected = nbt;
+            selectedRef = nbt.path(root, gets.get(0));
+        } else {
+            final RawNBTWriter writer = new RawNBTWriter();
+            writer.beginCompound("");
+            for (String get : gets) {
+                RawNBT.Ref ref = nbt.path(root, get);
+                if (ref == null || (flags.skipEmpty && isEmpty(nbt, ref))) continue;
+                writer.writeRaw(get, nbt, ref);
+            }
+            writer.endCompound();
+            selected = new RawNBT(writer.toByteArray());
+            selectedRef = selected.root();
+        }
+        if (selectedRef == null) {
+            return format == Format.JSON && !flags.skipEmpty
+                ? (prefix + "null\n").getBytes(StandardCharsets.UTF_8)
+                : null;
+        }
+        if (flags.skipEmpty && isEmpty(selected, selectedRef)) return null;
+        final long serializeStart = System.nanoTime();
+        final byte[] result;
+        switch (format) {
+        case JSON: {
+            final StringWriter json = new StringWriter();
+            final JsonWriter out = new JsonWriter(json);
+            if (flags.pretty) out.setIndent("  ");
+            RawJson.write(out, selected, selectedRef);
+            out.flush();
+            result = (prefix + json + "\n").getBytes(StandardCharsets.UTF_8);
+            break;
+        }
+        case SNBT:
+            result = (prefix + SNBT.toString(selected, selectedRef) + "\n").getBytes(StandardCharsets.UTF_8);
+            break;
+        case NBT:
+            result = encode(selected, selectedRef, gets);
+            break;
+        case RECORDS: {
+            final byte[] key = (prefix.endsWith(",") ? prefix.substring(0, prefix.length() - 1) : prefix).getBytes(StandardCharsets.UTF_8);
+            final byte[] payload = encode(selected, selectedRef, gets);
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(key.length + payload.length + 8);
+            final DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(payload.length);
+            out.write(payload);
+            result = baos.toByteArray();
+            break;
+        }
+        default: throw new IllegalArgumentException("format=" + format);
+        }
+        Metrics.SERIALIZE.since(serializeStart);
+        return result;
+    }
+
+    /**
+     * Encode the selection as a named root tag.  The whole input is
+     * returned as is.
+     */
+    private static byte[] encode(RawNBT nbt, RawNBT.Ref ref, List<String> gets) {
+        if (ref.equals(nbt.root())) {
+            return Arrays.copyOf(nbt.getData(), nbt.rootEnd());
+        }
+        final String get = gets.get(0);
+        final String name = get.substring(get.lastIndexOf('.') + 1);
+        return new RawNBTWriter(nbt.end(ref) - ref.pos() + name.length() + 3).writeRaw(name, nbt, ref).toByteArray();
+    }
+
+    private static boolean isEmpty(RawNBT nbt, RawNBT.Ref ref) {
+        switch (ref.type()) {
+        case RawNBT.COMPOUND: return nbt.getData()[ref.pos()] == RawNBT.END;
+        case RawNBT.LIST: return nbt.size(ref) == 0;
+        default: return false;
+        }
+    }
+
+    private RawFormatter() { }
+}
@@ -0,0 +1,98 @@
+package com.cavetale.nbtdump;
+
+import com.cavetale.nbtdump.region.RegionChunk;
+import com.cavetale.nbtdump.region.RegionChunkReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Load whole region files on a small pool of I/O threads, ahead of
+ * the workers decoding them.  At most prefetchDepth regions are
+ * loaded or waiting for a worker at any time, and their combined
+ * size is bounded by the MemoryGovernor.
+ */
+final class RegionPrefetcher {
+    static int ioThreads = 4;
+    static int prefetchDepth = 2 * Runtime.getRuntime().availableProcessors();
+    static RegionChunkReader.Options readOptions = RegionChunkReader.Options.DEFAULT;
+
+    @FunctionalInterface
+    interface Worker<T> {
+        void accept(T item, List<RegionChunk> chunks) throws Exception;
+    }
+
+    static List<RegionChunk> load(File file) throws IOException {
+        final long start = System.nanoTime();
+        List<RegionChunk> result = RegionChunkReader.readChunks(file, readOptions, Metrics.BYTES_READ::add);
+        Metrics.READ.since(start);
+        return result;
+    }
+
+    /**
+     * Process all items on the common pool.
+     */
+    static <T> void run(List<T> items, Function<T, File> fileOf, Worker<T> worker) {
+        run(items, fileOf, worker, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Load the file of each item and hand its chunks to the worker
+     * on the given executor.  Errors are reported per item and do not
+     * stop the run.
+     */
+    static <T> void run(List<T> items, Function<T, File> fileOf, Worker<T> worker, Executor workers) {
+        final ExecutorService io = Executors.newFixedThreadPool(ioThreads, r -> {
+                Thread thread = new Thread(r, "RegionPrefetcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        final Semaphore ahead = new Semaphore(Math.max(1, prefetchDepth));
+        final List<CompletableFuture<Void>> futures = new ArrayList<>(items.size());
+        try {
+            for (T item : items) {
+                ahead.acquireUninterruptibly();
+                final File file = fileOf.apply(item);
+                final MemoryGovernor.Lease lease = MemoryGovernor.acquireRegion(file.length());
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return load(file);
+                            } catch (IOException ioe) {
+                                throw new CompletionException(ioe);
+                            }
+                        }, io)
+                    .thenAcceptAsync(chunks -> {
+                            try {
+                                worker.accept(item, chunks);
+                            } catch (Exception e) {
+                                throw new CompletionException(e);
+                            }
+                        }, workers)
+                    .whenComplete((v, t) -> {
+                            lease.close();
+                            ahead.release();
+                            if (t != null) {
+                                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                                System.err.println(file + ": " + cause);
+                            }
+                        }));
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.exceptionally(t -> null).join();
+            }
+        } finally {
+            io.shutdownNow();
+        }
+    }
+
+    private RegionPrefetcher() { }
+}
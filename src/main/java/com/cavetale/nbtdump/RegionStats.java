@@ -0,0 +1,213 @@
+package com.cavetale.nbtdump;
+
+import com.cavetale.nbtdump.region.RegionFileHeader;
+import com.cavetale.nbtdump.region.RegionHeaderTable;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Summarize region files from their headers alone, without reading
+ * any chunk data.
+ */
+final class RegionStats {
+    /**
+     * Header statistics of one region file.  Sizes are in bytes as
+     * allocated in sectors, timestamps in epoch seconds.
+     */
+    record Stat(String world, String dimension, String kind, String file, int regionX, int regionZ,
+                long fileSize, int chunks, long usedBytes, int largestChunk,
+                int oldest, int newest, int freeSectors, double fragmentation) {
+        static final String CSV_HEADER = "world,dimension,kind,file,region_x,region_z,file_size,chunks,used_bytes,largest_chunk,"
+            + "oldest,newest,free_sectors,fragmentation";
+
+        String toCsv() {
+            return csv(world) + "," + csv(dimension) + "," + csv(kind) + "," + csv(file) + "," + regionX + "," + regionZ
+                + "," + fileSize + "," + chunks + "," + usedBytes + "," + largestChunk + "," + oldest + "," + newest
+                + "," + freeSectors + "," + String.format(Locale.ROOT, "%.4f", fragmentation);
+        }
+
+        /**
+         * Quote a field containing a separator, quote or line break,
+         * doubling any quotes within.
+         */
+        private static String csv(String value) {
+            if (value == null) return "";
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                return value;
+            }
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("world", world);
+            result.put("dimension", dimension);
+            result.put("kind", kind);
+            result.put("file", file);
+            result.put("region_x", regionX);
+            result.put("region_z", regionZ);
+            result.put("file_size", fileSize);
+            result.put("chunks", chunks);
+            result.put("used_bytes", usedBytes);
+            result.put("largest_chunk", largestChunk);
+            result.put("oldest", oldest);
+            result.put("newest", newest);
+            result.put("free_sectors", freeSectors);
+            result.put("fragmentation", fragmentation);
+            return result;
+        }
+    }
+
+    /**
+     * Read the headers of all worlds in one parallel pass.  With more
+     * than one world the summary is also broken down by world.
+     */
+    static void regionStats(List<File> worldFolders, String format) throws IOException {
+        final boolean csv = "csv".equals(format);
+        if (!csv && format != null && !"json".equals(format)) {
+            throw new IllegalArgumentException("Unsupported format for --regionstats: " + format);
+        }
+        Map<WorldLayout.RegionFile, File> regionFiles = new LinkedHashMap<>();
+        for (File worldFolder : worldFolders) {
+            for (WorldLayout.RegionFile regionFile : WorldLayout.findRegionFiles(worldFolder)) {
+                regionFiles.put(regionFile, worldFolder);
+            }
+        }
+        if (regionFiles.isEmpty()) {
+            System.err.println("No region files found!");
+            System.exit(1);
+        }
+        Metrics.start("regionstats", regionFiles.size());
+        List<Stat> stats = regionFiles.entrySet().parallelStream()
+            .map(entry -> stat(entry.getValue(), entry.getKey()))
+            .filter(Objects::nonNull)
+            .toList();
+        Metrics.stop();
+        final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+        final PrintStream out = Main.bufferedStdout();
+        if (csv) out.println(Stat.CSV_HEADER);
+        for (Stat stat : stats) {
+            out.println(csv ? stat.toCsv() : gson.toJson(stat.toMap()));
+        }
+        Map<String, Object> summary = summarize(stats);
+        if (worldFolders.size() > 1) {
+            Map<String, List<Stat>> worlds = new LinkedHashMap<>();
+            for (Stat stat : stats) {
+                worlds.computeIfAbsent(stat.world(), k -> new ArrayList<>()).add(stat);
+            }
+            Map<String, Object> byWorld = new LinkedHashMap<>();
+            for (Map.Entry<String, List<Stat>> entry : worlds.entrySet()) {
+                byWorld.put(entry.getKey(), summarize(entry.getValue()));
+            }
+            summary.put("by_world", byWorld);
+        }
+        if (csv) {
+            out.flush();
+            System.err.println(new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create().toJson(summary));
+        } else {
+            out.println(gson.toJson(Map.of("summary", summary)));
+        }
+        out.flush();
+    }
+
+    static Stat stat(File worldFolder, WorldLayout.RegionFile regionFile) {
+        try {
+            final long fileSize = regionFile.file().length();
+            if (fileSize < RegionHeaderTable.HEADER_SIZE) return null;
+            final RegionHeaderTable header = RegionHeaderTable.read(regionFile.file());
+            final int fileSectors = (int) ((fileSize + RegionFileHeader.KIB - 1L) / RegionFileHeader.KIB);
+            int chunks = 0;
+            long usedSectors = 0L;
+            int largest = 0;
+            int oldest = Integer.MAX_VALUE;
+            int newest = 0;
+            for (int z = 0; z < 32; z += 1) {
+                for (int x = 0; x < 32; x += 1) {
+                    if (!header.hasChunk(x, z)) continue;
+                    chunks += 1;
+                    final int sectors = header.getChunkSectorCount(x, z);
+                    usedSectors += sectors;
+                    largest = Math.max(largest, sectors);
+                    final int timestamp = header.getChunkTimestamp(x, z);
+                    if (timestamp != 0) {
+                        oldest = Math.min(oldest, timestamp);
+                        newest = Math.max(newest, timestamp);
+                    }
+                }
+            }
+            final int dataSectors = Math.max(0, fileSectors - 2);
+            final int freeSectors = (int) Math.max(0L, dataSectors - usedSectors);
+            return new Stat(worldFolder.getPath(), regionFile.dimension().name(), regionFile.kind().folderName,
+                            regionFile.file().getName(), regionFile.regionX(), regionFile.regionZ(), fileSize, chunks,
+                            usedSectors * RegionFileHeader.KIB, largest * (int) RegionFileHeader.KIB,
+                            oldest == Integer.MAX_VALUE ? 0 : oldest, newest, freeSectors,
+                            dataSectors > 0 ? (double) freeSectors / (double) dataSectors : 0.0);
+        } catch (IOException ioe) {
+            System.err.println(regionFile.file() + ": " + ioe.getMessage());
+            return null;
+        } finally {
+            Metrics.REGIONS_DONE.increment();
+        }
+    }
+
+    /**
+     * World wide totals, overall and by dimension and kind.
+     */
+    static Map<String, Object> summarize(List<Stat> stats) {
+        Map<String, List<Stat>> groups = new TreeMap<>();
+        for (Stat stat : stats) {
+            groups.computeIfAbsent(stat.dimension() + "/" + stat.kind(), k -> new ArrayList<>()).add(stat);
+        }
+        Map<String, Object> result = aggregate(stats);
+        Map<String, Object> byGroup = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Stat>> entry : groups.entrySet()) {
+            byGroup.put(entry.getKey(), aggregate(entry.getValue()));
+        }
+        result.put("by_dimension", byGroup);
+        return result;
+    }
+
+    private static Map<String, Object> aggregate(List<Stat> stats) {
+        long fileSize = 0L;
+        long chunks = 0L;
+        long usedBytes = 0L;
+        long freeSectors = 0L;
+        int largest = 0;
+        int oldest = Integer.MAX_VALUE;
+        int newest = 0;
+        for (Stat stat : stats) {
+            fileSize += stat.fileSize();
+            chunks += stat.chunks();
+            usedBytes += stat.usedBytes();
+            freeSectors += stat.freeSectors();
+            largest = Math.max(largest, stat.largestChunk());
+            if (stat.oldest() != 0) oldest = Math.min(oldest, stat.oldest());
+            newest = Math.max(newest, stat.newest());
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("regions", stats.size());
+        result.put("chunks", chunks);
+        result.put("file_size", fileSize);
+        result.put("used_bytes", usedBytes);
+        result.put("free_bytes", freeSectors * RegionFileHeader.KIB);
+        result.put("largest_chunk", largest);
+        result.put("mean_chunk", chunks > 0 ? usedBytes / chunks : 0L);
+        result.put("oldest", oldest == Integer.MAX_VALUE ? 0 : oldest);
+        result.put("newest", newest);
+        final long dataBytes = usedBytes + freeSectors * RegionFileHeader.KIB;
+        result.put("fragmentation", dataBytes > 0 ? (double) (freeSectors * RegionFileHeader.KIB) / (double) dataBytes : 0.0);
+        return result;
+    }
+
+    private RegionStats() { }
+}
@@ -0,0 +1,166 @@
+package com.cavetale.nbtdump;
+
+import com.cavetale.nbtdump.nbt.RawNBT;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pull the structure starts and the dominant biome out of an
+ * uncompressed chunk.  Only xPos, zPos, structures.starts and the
+ * section biome palettes are visited; everything else is skipped
+ * without being decoded.
+ */
+final class StructureExtractor {
+    private static final byte[] ID = RawNBT.encodeName("id");
+    private static final byte[] CHUNK_X = RawNBT.encodeName("ChunkX");
+    private static final byte[] CHUNK_Z = RawNBT.encodeName("ChunkZ");
+    private static final byte[] CHILDREN = RawNBT.encodeName("Children");
+    private static final byte[] BB = RawNBT.encodeName("BB");
+    private static final byte[] STARTS = RawNBT.encodeName("starts");
+    private static final byte[] BIOMES = RawNBT.encodeName("biomes");
+    private static final byte[] PALETTE = RawNBT.encodeName("palette");
+
+    /**
+     * A structure start.  The bounds are the union of the bounding
+     * boxes of all children: ax, ay, az, bx, by, bz.
+     */
+    record Start(String id, int chunkX, int chunkZ, int[] bounds, String json) { }
+
+    /**
+     * @param topBiome the most common biome palette entry, or null
+     */
+    record Chunk(int xPos, int zPos, List<Start> starts, String topBiome) { }
+
+    /**
+     * @return the extracted chunk or null if it lacks coordinates
+     */
+    static Chunk extract(RawNBT nbt) {
+        final RawNBT.Ref root = nbt.root();
+        if (root == null) return null;
+        // Find all top level fields in a single pass
+        final RawNBT.Ref[] fields = new RawNBT.Ref[4];
+        nbt.forEach(root, (name, value) -> {
+                switch (name) {
+                case "xPos": fields[0] = value; break;
+                case "zPos": fields[1] = value; break;
+                case "structures": fields[2] = value; break;
+                case "sections": fields[3] = value; break;
+                default: break;
+                }
+                return true;
+            });
+        if (fields[0] == null || fields[1] == null) return null;
+        return new Chunk(nbt.getInt(fields[0], 0), nbt.getInt(fields[1], 0),
+                         extractStarts(nbt, nbt.get(fields[2], STARTS)),
+                         topBiome(nbt, fields[3]));
+    }
+
+    private static List<Start> extractStarts(RawNBT nbt, RawNBT.Ref starts) {
+        if (starts == null) return List.of();
+        final List<Start> result = new ArrayList<>();
+        nbt.forEach(starts, (key, start) -> {
+                final String id = nbt.getString(nbt.get(start, ID));
+                if (id == null || id.equals("INVALID")) return true;
+                if (!id.equals(key)) {
+                    throw new IllegalStateException(id + " != " + key);
+                }
+                final int[] bounds = {
+                    Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                    Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE,
+                };
+                final RawNBT.Ref children = nbt.get(start, CHILDREN);
+                for (RawNBT.Ref child : nbt.elements(children)) {
+                    final RawNBT.Ref bb = nbt.get(child, BB);
+                    if (bb == null || bb.type() != RawNBT.INT_ARRAY || nbt.size(bb) < 6) continue;
+                    final int pos = bb.pos() + 4;
+                    for (int i = 0; i < 3; i += 1) {
+                        bounds[i] = Math.min(bounds[i], nbt.readInt(pos + 4 * i));
+                        bounds[i + 3] = Math.max(bounds[i + 3], nbt.readInt(pos + 4 * (i + 3)));
+                    }
+                }
+                final int chunkX = nbt.getInt(nbt.get(start, CHUNK_X), 0);
+                final int chunkZ = nbt.getInt(nbt.get(start, CHUNK_Z), 0);
+                final long serializeStart = System.nanoTime();
+                final String json = toJson(nbt, id, children);
+                Metrics.SERIALIZE.since(serializeStart);
+                result.add(new Start(id, chunkX, chunkZ, bounds, json));
+                return true;
+            });
+        return result;
+    }
+
+    /**
+     * Render the id and the children, reduced to their id, BB and
+     * nested children.
+     */
+    private static String toJson(RawNBT nbt, String id, RawNBT.Ref children) {
+        final StringWriter string = new StringWriter();
+        try {
+            final JsonWriter out = new JsonWriter(string);
+            out.beginObject();
+            out.name("id").value(id);
+            if (children != null) {
+                out.name("Children");
+                writeChildren(out, nbt, children);
+            }
+            out.endObject();
+            out.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return string.toString();
+    }
+
+    private static void writeChildren(JsonWriter out, RawNBT nbt, RawNBT.Ref children) throws IOException {
+        out.beginArray();
+        for (RawNBT.Ref child : nbt.elements(children)) {
+            out.beginObject();
+            final String childId = nbt.getString(nbt.get(child, ID));
+            if (childId != null) out.name("id").value(childId);
+            final int[] bb = nbt.getIntArray(nbt.get(child, BB));
+            if (bb != null) {
+                out.name("BB").beginArray();
+                for (int value : bb) out.value(value);
+                out.endArray();
+            }
+            final RawNBT.Ref grandChildren = nbt.get(child, CHILDREN);
+            if (grandChildren != null && grandChildren.type() == RawNBT.LIST) {
+                out.name("Children");
+                writeChildren(out, nbt, grandChildren);
+            }
+            out.endObject();
+        }
+        out.endArray();
+    }
+
+    /**
+     * Count the biome palette entries of all sections.
+     */
+    private static String topBiome(RawNBT nbt, RawNBT.Ref sections) {
+        final Map<String, Integer> biomeCount = new HashMap<>();
+        for (RawNBT.Ref section : nbt.elements(sections)) {
+            final RawNBT.Ref palette = nbt.get(nbt.get(section, BIOMES), PALETTE);
+            if (palette == null || palette.type() != RawNBT.LIST || nbt.listType(palette) != RawNBT.STRING) continue;
+            for (RawNBT.Ref entry : nbt.elements(palette)) {
+                biomeCount.merge(nbt.readString(entry.pos()), 1, Integer::sum);
+            }
+        }
+        String topBiome = null;
+        int topCount = 0;
+        for (Map.Entry<String, Integer> entry : biomeCount.entrySet()) {
+            if (entry.getValue() > topCount) {
+                topBiome = entry.getKey();
+                topCount = entry.getValue();
+            }
+        }
+        return topBiome;
+    }
+
+    private StructureExtractor() { }
+}
@@ -1,45 +1,127 @@
 package com.cavetale.nbtdump;
 
-import com.github.steveice10.opennbt.conversion.ConverterRegistry;
-import com.github.steveice10.opennbt.tag.builtin.Tag;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.cavetale.nbtdump.nbt.RawNBT;
+import com.cavetale.nbtdump.region.RegionChunk;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 final class StructureFinder {
-    @SuppressWarnings("unchecked")
-    static void findStructures(File worldFolder) throws Exception {
-        File databaseFile = new File(worldFolder, "structures.db");
+    private final File worldFolder;
+    private final int regionFileTotal;
+    private final boolean structRefs;
+    private String label = "";
+    private Connection connection;
+    private PreparedStatement stmtStructure;
+    private PreparedStatement stmtBounds;
+    private Statement stmtBiome;
+    private Statement stmtReference;
+    private int regionFileCount = 0;
+    private int structureCount = 0;
+
+    private StructureFinder(final File worldFolder, final int regionFileTotal, final boolean structRefs) {
+        this.worldFolder = worldFolder;
+        this.regionFileTotal = regionFileTotal;
+        this.structRefs = structRefs;
+    }
+
+    /**
+     * A structure start as it will be stored in the database.
+     */
+    private record StructureRow(String type, int chunkX, int chunkZ,
+                                int ax, int ay, int az, int bx, int by, int bz,
+                                String json) { }
+
+    /**
+     * Everything extracted from one region file, ready to be written.
+     */
+    private record RegionResult(int chunkCount, List<StructureRow> structures, List<String> biomeValues) { }
+
+    /**
+     * A region file together with the finder of its world.
+     */
+    private record Item(StructureFinder finder, File file) { }
+
+    /**
+     * Scan all worlds in one run.  Each world keeps its own database,
+     * written under its own lock.  Bounding boxes are indexed in the
+     * structure_bounds R*Tree.  The struct_refs table of region
+     * references is only filled for older readers which still expect
+     * it.
+     */
+    static void findStructures(List<File> worldFolders, boolean structRefs) throws Exception {
         Class.forName("org.sqlite.JDBC");
+        List<StructureFinder> finders = new ArrayList<>();
+        List<Item> items = new ArrayList<>();
+        try {
+            for (File worldFolder : worldFolders) {
+                List<File> regionFiles = WorldLayout.findRegionFiles(worldFolder).stream()
+                    .filter(it -> it.kind() == WorldLayout.RegionKind.REGION)
+                    .map(WorldLayout.RegionFile::file)
+                    .toList();
+                StructureFinder finder = new StructureFinder(worldFolder, regionFiles.size(), structRefs);
+                if (worldFolders.size() > 1) finder.label = worldFolder + " ";
+                finders.add(finder);
+                finder.open(new File(worldFolder, "structures.db"));
+                for (File file : regionFiles) {
+                    items.add(new Item(finder, file));
+                }
+            }
+            Metrics.start("structures", items.size());
+            RegionPrefetcher.run(items, Item::file, (item, chunks) -> item.finder().processRegion(item.file(), chunks));
+            for (StructureFinder finder : finders) {
+                finder.connection.commit();
+            }
+        } finally {
+            for (StructureFinder finder : finders) {
+                finder.close();
+            }
+        }
         int regionFileCount = 0;
         int structureCount = 0;
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile)) {
-            try (Statement statement = connection.createStatement()) {
-                statement.execute("CREATE TABLE IF NOT EXISTS `structures` ("
-                                  + " `id` INTEGER PRIMARY KEY,"
-                                  + " `type` VARCHAR(255) NOT NULL,"
-                                  + " `chunk_x` INTEGER NOT NULL,"
-                                  + " `chunk_z` INTEGER NOT NULL,"
-                                  + " `ax` INTEGER NOT NULL,"
-                                  + " `ay` INTEGER NOT NULL,"
-                                  + " `az` INTEGER NOT NULL,"
-                                  + " `bx` INTEGER NOT NULL,"
-                                  + " `by` INTEGER NOT NULL,"
-                                  + " `bz` INTEGER NOT NULL,"
-                                  + " `json` TEXT NOT NULL,"
-                                  + " `discovered` INTEGER NOT NULL"
-                                  + ")");
+        for (StructureFinder finder : finders) {
+            regionFileCount += finder.regionFileCount;
+            structureCount += finder.structureCount;
+            if (finders.size() > 1) {
+                System.err.println(finder.worldFolder + ": " + finder.regionFileCount + " region files, "
+                                   + finder.structureCount + " structures");
+            }
+        }
+        if (regionFileCount == 0) {
+            System.err.println("No region files found!");
+            System.exit(1);
+        }
+        if (structureCount == 0) {
+            System.err.println("No structures found!");
+            System.exit(1);
+        }
+    }
+
+    private void open(File databaseFile) throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS `structures` ("
+                              + " `id` INTEGER PRIMARY KEY,"
+                              + " `type` VARCHAR(255) NOT NULL,"
+                              + " `chunk_x` INTEGER NOT NULL,"
+                              + " `chunk_z` INTEGER NOT NULL,"
+                              + " `ax` INTEGER NOT NULL,"
+                              + " `ay` INTEGER NOT NULL,"
+                              + " `az` INTEGER NOT NULL,"
+                              + " `bx` INTEGER NOT NULL,"
+                              + " `by` INTEGER NOT NULL,"
+                              + " `bz` INTEGER NOT NULL,"
+                              + " `json` TEXT NOT NULL,"
+                              + " `discovered` INTEGER NOT NULL"
+                              + ")");
+            if (structRefs) {
                 statement.execute("CREATE TABLE IF NOT EXISTS `struct_refs` ("
                                   + " `id` INTEGER PRIMARY KEY,"
                                   + " `structure_id` INTEGER NOT NULL,"
@@ -47,175 +129,179 @@ final class StructureFinder {
                                   + " `region_z` INTEGER NOT NULL,"
                                   + " UNIQUE(`region_x`, `region_z`, `structure_id`)"
                                   + ")");
-                statement.execute("CREATE TABLE IF NOT EXISTS `biomes` ("
-                                  + " `id` INTEGER PRIMARY KEY,"
-                                  + " `chunk_x` INTEGER NOT NULL,"
-                                  + " `chunk_z` INTEGER NOT NULL,"
-                                  + " `biome` TEXT NOT NULL,"
-                                  + " UNIQUE(`chunk_x`, `chunk_z`) ON CONFLICT REPLACE"
-                                  + ")");
             }
-            Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-            String sqlStructure = "INSERT INTO `structures`"
-                + " (`type`, `chunk_x`, `chunk_z`, `ax`, `ay`, `az`, `bx`, `by`, `bz`, `json`, `discovered`)"
-                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
-            String sqlBiome = "INSERT INTO `biomes` (`chunk_x`, `chunk_z`, `biome`) VALUES ";
-            try (PreparedStatement stmtStructure = connection.prepareStatement(sqlStructure, Statement.RETURN_GENERATED_KEYS);
-                 Statement stmtBiome = connection.createStatement();
-                 Statement stmtReference = connection.createStatement()) {
-                for (String path : List.of("region", "DIM1/region", "DIM-1/region")) {
-                    File folder = new File(worldFolder, path);
-                    if (!folder.exists()) continue;
-                    List<File> regionFiles = List.of(folder.listFiles());
-                    for (File file : regionFiles) {
-                        if (!file.getName().startsWith("r.") || !file.getName().endsWith(".mca")) continue;
-                        RandomAccessFile raf = new RandomAccessFile(file, "r");
-                        if (raf.length() == 0L) {
-                            System.err.println(file + ": File is empty");
-                            continue;
-                        }
-                        regionFileCount += 1;
-                        int chunksPerRegion = 0;
-                        int structuresPerRegion = 0;
-                        int biomesPerRegion = 0;
-                        for (int z = 0; z < 32; z += 1) {
-                            List<String> biomeValues = new ArrayList<>();
-                            for (int x = 0; x < 32; x += 1) {
-                                Tag tag;
-                                try {
-                                    tag = Main.getAnvilTag(raf, x, z);
-                                } catch (IOException ioe) {
-                                    continue;
-                                }
-                                if (tag == null) continue;
-                                chunksPerRegion += 1;
-                                Map<String, Object> chunkTag = (Map<String, Object>) ConverterRegistry.convertToValue(tag);
-                                final int xPos = ((Number) chunkTag.get("xPos")).intValue();
-                                final int zPos = ((Number) chunkTag.get("zPos")).intValue();
-                                Map<String, Object> structuresMap = (Map<String, Object>) chunkTag.get("structures");
-                                if (structuresMap != null) {
-                                    Map<String, Object> starts = (Map<String, Object>) structuresMap.get("starts");
-                                    if (starts != null) {
-                                        for (Map.Entry<String, Object> entry : starts.entrySet()) {
-                                            Map<String, Object> structureMap = (Map<String, Object>) entry.getValue();
-                                            String key = (String) structureMap.get("id");
-                                            if (key == null || key.equals("INVALID")) continue;
-                                            if (!key.equals(entry.getKey())) {
-                                                throw new IllegalStateException(file + ": " + key + " != " + entry.getKey());
-                                            }
-                                            int ax = Integer.MAX_VALUE;
-                                            int ay = Integer.MAX_VALUE;
-                                            int az = Integer.MAX_VALUE;
-                                            int bx = Integer.MIN_VALUE;
-                                            int by = Integer.MIN_VALUE;
-                                            int bz = Integer.MIN_VALUE;
-                                            for (Map<String, Object> childMap : (List<Map<String, Object>>) structureMap.get("Children")) {
-                                                childMap.keySet().removeIf(k -> !k.equals("id") && !k.equals("Children") && !k.equals("BB"));
-                                                int[] boundingBox = (int[]) childMap.get("BB");
-                                                if (boundingBox == null) continue;
-                                                ax = Math.min(ax, boundingBox[0]);
-                                                ay = Math.min(ay, boundingBox[1]);
-                                                az = Math.min(az, boundingBox[2]);
-                                                bx = Math.max(bx, boundingBox[3]);
-                                                by = Math.max(by, boundingBox[4]);
-                                                bz = Math.max(bz, boundingBox[5]);
-                                            }
-                                            final int chunkX = ((Number) structureMap.get("ChunkX")).intValue();
-                                            final int chunkZ = ((Number) structureMap.get("ChunkZ")).intValue();
-                                            structureMap.keySet().removeIf(k -> !k.equals("id") && !k.equals("Children"));
-                                            final String json = gson.toJson(structureMap);
-                                            stmtStructure.setString(1, key);
-                                            stmtStructure.setInt(2, chunkX);
-                                            stmtStructure.setInt(3, chunkZ);
-                                            stmtStructure.setInt(4, ax);
-                                            stmtStructure.setInt(5, ay);
-                                            stmtStructure.setInt(6, az);
-                                            stmtStructure.setInt(7, bx);
-                                            stmtStructure.setInt(8, by);
-                                            stmtStructure.setInt(9, bz);
-                                            stmtStructure.setString(10, json);
-                                            stmtStructure.executeUpdate();
-                                            final int structureId;
-                                            try (ResultSet generatedKeys = stmtStructure.getGeneratedKeys()) {
-                                                if (!generatedKeys.next()) throw new IllegalStateException("No id: " + json);
-                                                structureId = generatedKeys.getInt(1);
-                                            }
-                                            // Reference
-                                            final int cax = ax >> 9;
-                                            final int caz = az >> 9;
-                                            final int cbx = bx >> 9;
-                                            final int cbz = bz >> 9;
-                                            List<String> values = new ArrayList<>();
-                                            for (int cz = caz; cz <= cbz; cz += 1) {
-                                                for (int cx = cax; cx <= cbx; cx += 1) {
-                                                    values.add("(" + structureId + "," + cx + "," + cz + ")");
-                                                }
-                                            }
-                                            String sqlReference = "INSERT INTO `struct_refs`"
-                                                + " (`structure_id`, `region_x`, `region_z`)"
-                                                + " VALUES " + String.join(", ", values);
-                                            stmtReference.execute(sqlReference);
-                                            structuresPerRegion += 1;
-                                            structureCount += 1;
-                                        }
-                                    }
-                                }
-                                List<Map<String, Object>> sectionList = (List<Map<String, Object>>) chunkTag.get("sections");
-                                if (sectionList != null) {
-                                    Map<String, Integer> biomeCount = new HashMap<>();
-                                    for (Map<String, Object> sectionMap : sectionList) {
-                                        //final int y = ((Number) sectionMap.get("Y")).intValue();
-                                        Map<String, Object> biomesMap = (Map<String, Object>) sectionMap.get("biomes");
-                                        if (biomesMap == null) continue;
-                                        List<String> palette = (List<String>) biomesMap.get("palette");
-                                        if (palette == null) continue;
-                                        for (String p : palette) {
-                                            int count = biomeCount.getOrDefault(p, 0);
-                                            biomeCount.put(p, count + 1);
-                                        }
-                                    }
-                                    if (!biomeCount.isEmpty()) {
-                                        String topBiome = null;
-                                        int topCount = 0;
-                                        for (Map.Entry<String, Integer> entry : biomeCount.entrySet()) {
-                                            int count = entry.getValue();
-                                            if (count > topCount) {
-                                                topBiome = entry.getKey();
-                                                topCount = count;
-                                            }
-                                        }
-                                        assert topBiome != null;
-                                        if (topBiome.startsWith("minecraft:")) {
-                                            topBiome = topBiome.substring(10);
-                                        }
-                                        biomeValues.add("(" + xPos + ", " + zPos + ", '" + topBiome + "')");
-                                        biomesPerRegion += 1;
-                                    }
-                                }
-                            }
-                            if (!biomeValues.isEmpty()) {
-                                String sql = sqlBiome + String.join(", ", biomeValues);
-                                stmtBiome.execute(sql);
-                            }
-                        }
-                        System.err.println("Region File " + file.getName()
-                                           + " " + regionFileCount + "/" + regionFiles.size()
-                                           + " chunks:" + chunksPerRegion
-                                           + " structures:" + structuresPerRegion
-                                           + " biomes:" + biomesPerRegion);
-                    }
-                }
+            statement.execute("CREATE TABLE IF NOT EXISTS `biomes` ("
+                              + " `id` INTEGER PRIMARY KEY,"
+                              + " `chunk_x` INTEGER NOT NULL,"
+                              + " `chunk_z` INTEGER NOT NULL,"
+                              + " `biome` TEXT NOT NULL,"
+                              + " UNIQUE(`chunk_x`, `chunk_z`) ON CONFLICT REPLACE"
+                              + ")");
+            statement.execute("CREATE INDEX IF NOT EXISTS `structures_chunk` ON `structures` (`chunk_x`, `chunk_z`)");
+            statement.execute("CREATE INDEX IF NOT EXISTS `structures_type` ON `structures` (`type`)");
+            statement.execute("CREATE VIRTUAL TABLE IF NOT EXISTS `structure_bounds` USING rtree_i32("
+                              + "`id`, `min_x`, `max_x`, `min_y`, `max_y`, `min_z`, `max_z`"
+                              + ")");
+            // Index structures stored before the R*Tree existed,
+            // except those without bounding boxes
+            statement.execute("INSERT INTO `structure_bounds`"
+                              + " SELECT `id`, `ax`, `bx`, `ay`, `by`, `az`, `bz` FROM `structures`"
+                              + " WHERE `ax` <= `bx` AND `ay` <= `by` AND `az` <= `bz`"
+                              + " AND `id` NOT IN (SELECT `id` FROM `structure_bounds`)");
+        }
+        String sqlStructure = "INSERT INTO `structures`"
+            + " (`type`, `chunk_x`, `chunk_z`, `ax`, `ay`, `az`, `bx`, `by`, `bz`, `json`, `discovered`)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+        String sqlBounds = "INSERT INTO `structure_bounds`"
+            + " (`id`, `min_x`, `max_x`, `min_y`, `max_y`, `min_z`, `max_z`)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?)";
+        connection.setAutoCommit(false);
+        stmtStructure = connection.prepareStatement(sqlStructure, Statement.RETURN_GENERATED_KEYS);
+        stmtBounds = connection.prepareStatement(sqlBounds);
+        stmtBiome = connection.createStatement();
+        if (structRefs) stmtReference = connection.createStatement();
+    }
+
+    private void close() throws SQLException {
+        if (connection == null) return;
+        try {
+            for (Statement statement : new Statement[] {stmtStructure, stmtBounds, stmtBiome, stmtReference}) {
+                if (statement != null) statement.close();
             }
+        } finally {
+            connection.close();
         }
-        if (regionFileCount == 0) {
-            System.err.println("No region files found!");
-            System.exit(1);
+    }
+
+    /**
+     * Extract on the calling worker thread, then write under the
+     * lock, as the connection is not shared between threads.
+     */
+    private void processRegion(File file, List<RegionChunk> chunks) throws SQLException {
+        if (chunks.isEmpty()) {
+            Metrics.REGIONS_DONE.increment();
+            return;
         }
-        if (structureCount == 0) {
-            System.err.println("No structures found!");
-            System.exit(1);
+        RegionResult result = extractRegion(file, chunks);
+        synchronized (this) {
+            try {
+                writeRegion(result);
+            } catch (SQLException sqle) {
+                connection.rollback();
+                throw sqle;
+            }
+            regionFileCount += 1;
+            structureCount += result.structures().size();
+            Metrics.REGIONS_DONE.increment();
+            System.err.println(label + "Region File " + file.getName()
+                               + " " + regionFileCount + "/" + regionFileTotal
+                               + " chunks:" + result.chunkCount()
+                               + " structures:" + result.structures().size()
+                               + " biomes:" + result.biomeValues().size());
         }
     }
 
-    private StructureFinder() { }
+    private RegionResult extractRegion(File file, List<RegionChunk> chunks) {
+        int chunkCount = 0;
+        List<StructureRow> structures = new ArrayList<>();
+        List<String> biomeValues = new ArrayList<>();
+        for (RegionChunk chunk : chunks) {
+            final StructureExtractor.Chunk extracted;
+            final MemoryGovernor.Lease lease = MemoryGovernor.acquireRawChunk(chunk.payload());
+            try {
+                extracted = StructureExtractor.extract(new RawNBT(Main.inflateChunk(chunk.payload())));
+            } catch (IOException | RuntimeException e) {
+                Metrics.CHUNKS_FAILED.increment();
+                System.err.println(file + ": " + chunk.x() + " " + chunk.z() + ": " + e.getMessage());
+                continue;
+            } finally {
+                lease.close();
+            }
+            Metrics.CHUNKS_DECODED.increment();
+            if (extracted == null) continue;
+            chunkCount += 1;
+            for (StructureExtractor.Start start : extracted.starts()) {
+                final int[] bb = start.bounds();
+                structures.add(new StructureRow(start.id(), start.chunkX(), start.chunkZ(),
+                                                bb[0], bb[1], bb[2], bb[3], bb[4], bb[5], start.json()));
+            }
+            String topBiome = extracted.topBiome();
+            if (topBiome != null) {
+                if (topBiome.startsWith("minecraft:")) {
+                    topBiome = topBiome.substring(10);
+                }
+                biomeValues.add("(" + extracted.xPos() + ", " + extracted.zPos() + ", '" + topBiome + "')");
+            }
+        }
+        return new RegionResult(chunkCount, structures, biomeValues);
+    }
+
+    /**
+     * Write all rows of one region in a single transaction.
+     */
+    private void writeRegion(RegionResult result) throws SQLException {
+        for (StructureRow row : result.structures()) {
+            final long dbStart = System.nanoTime();
+            stmtStructure.setString(1, row.type());
+            stmtStructure.setInt(2, row.chunkX());
+            stmtStructure.setInt(3, row.chunkZ());
+            stmtStructure.setInt(4, row.ax());
+            stmtStructure.setInt(5, row.ay());
+            stmtStructure.setInt(6, row.az());
+            stmtStructure.setInt(7, row.bx());
+            stmtStructure.setInt(8, row.by());
+            stmtStructure.setInt(9, row.bz());
+            stmtStructure.setString(10, row.json());
+            stmtStructure.executeUpdate();
+            final int structureId;
+            try (ResultSet generatedKeys = stmtStructure.getGeneratedKeys()) {
+                if (!generatedKeys.next()) throw new IllegalStateException("No id: " + row.json());
+                structureId = generatedKeys.getInt(1);
+            }
+            if (row.ax() > row.bx() || row.ay() > row.by() || row.az() > row.bz()) {
+                // No bounding boxes, so nothing to index or reference
+                Metrics.DB_WRITE.since(dbStart);
+                continue;
+            }
+            stmtBounds.setInt(1, structureId);
+            stmtBounds.setInt(2, row.ax());
+            stmtBounds.setInt(3, row.bx());
+            stmtBounds.setInt(4, row.ay());
+            stmtBounds.setInt(5, row.by());
+            stmtBounds.setInt(6, row.az());
+            stmtBounds.setInt(7, row.bz());
+            stmtBounds.executeUpdate();
+            if (!structRefs) {
+                Metrics.DB_WRITE.since(dbStart);
+                continue;
+            }
+            // Legacy region references
+            final int cax = row.ax() >> 9;
+            final int caz = row.az() >> 9;
+            final int cbx = row.bx() >> 9;
+            final int cbz = row.bz() >> 9;
+            List<String> values = new ArrayList<>();
+            for (int cz = caz; cz <= cbz; cz += 1) {
+                for (int cx = cax; cx <= cbx; cx += 1) {
+                    values.add("(" + structureId + "," + cx + "," + cz + ")");
+                }
+            }
+            String sqlReference = "INSERT INTO `struct_refs`"
+                + " (`structure_id`, `region_x`, `region_z`)"
+                + " VALUES " + String.join(", ", values);
+            stmtReference.execute(sqlReference);
+            Metrics.DB_WRITE.since(dbStart);
+        }
+        final List<String> biomeValues = result.biomeValues();
+        for (int i = 0; i < biomeValues.size(); i += 32) {
+            String sql = "INSERT INTO `biomes` (`chunk_x`, `chunk_z`, `biome`) VALUES "
+                + String.join(", ", biomeValues.subList(i, Math.min(biomeValues.size(), i + 32)));
+            final long dbStart = System.nanoTime();
+            stmtBiome.execute(sql);
+            Metrics.DB_WRITE.since(dbStart);
+        }
+        final long dbStart = System.nanoTime();
+        connection.commit();
+        Metrics.DB_WRITE.since(dbStart);
+    }
 }
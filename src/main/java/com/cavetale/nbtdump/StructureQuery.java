@@ -0,0 +1,164 @@
+package com.cavetale.nbtdump;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Look up structures in the structures.db written by StructureFinder
+ * via the structure_bounds R*Tree.  Results are printed as one JSON
+ * object per line.
+ */
+final class StructureQuery {
+    static final class Query {
+        boolean box;
+        int ax;
+        int az;
+        int bx;
+        int bz;
+        boolean near;
+        int x;
+        int z;
+        int radius;
+        List<String> types;
+    }
+
+    /**
+     * Query the databases of all worlds.  With more than one world,
+     * rows are tagged with their world and nearest results are ranked
+     * across all of them.
+     */
+    static void queryStructures(List<File> worldFolders, Query query, boolean pretty) throws Exception {
+        List<File> databaseFiles = new ArrayList<>();
+        for (File worldFolder : worldFolders) {
+            File databaseFile = new File(worldFolder, "structures.db");
+            if (!databaseFile.exists()) {
+                System.err.println("Database not found: " + databaseFile);
+                continue;
+            }
+            databaseFiles.add(databaseFile);
+        }
+        if (databaseFiles.isEmpty()) {
+            System.exit(1);
+        }
+        int minX = Integer.MIN_VALUE;
+        int minZ = Integer.MIN_VALUE;
+        int maxX = Integer.MAX_VALUE;
+        int maxZ = Integer.MAX_VALUE;
+        if (query.box) {
+            minX = Math.min(query.ax, query.bx);
+            minZ = Math.min(query.az, query.bz);
+            maxX = Math.max(query.ax, query.bx);
+            maxZ = Math.max(query.az, query.bz);
+        }
+        if (query.near) {
+            minX = Math.max(minX, query.x - query.radius);
+            minZ = Math.max(minZ, query.z - query.radius);
+            maxX = Math.min(maxX, query.x + query.radius);
+            maxZ = Math.min(maxZ, query.z + query.radius);
+        }
+        String sql = "SELECT s.`id`, s.`type`, s.`chunk_x`, s.`chunk_z`,"
+            + " s.`ax`, s.`ay`, s.`az`, s.`bx`, s.`by`, s.`bz`, s.`json`"
+            + " FROM `structure_bounds` b JOIN `structures` s ON s.`id` = b.`id`"
+            + " WHERE b.`max_x` >= ? AND b.`min_x` <= ? AND b.`max_z` >= ? AND b.`min_z` <= ?";
+        if (query.types != null && !query.types.isEmpty()) {
+            sql += " AND s.`type` IN (" + String.join(", ", query.types.stream().map(t -> "?").toList()) + ")";
+        }
+        Class.forName("org.sqlite.JDBC");
+        Gson gson = pretty
+            ? new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create()
+            : new GsonBuilder().disableHtmlEscaping().create();
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (File databaseFile : databaseFiles) {
+            final String world = worldFolders.size() > 1 ? databaseFile.getParentFile().getPath() : null;
+            queryDatabase(databaseFile, sql, minX, maxX, minZ, maxZ, query, world, results);
+        }
+        if (query.near) {
+            results.sort((a, b) -> Double.compare((Double) a.get("distance"), (Double) b.get("distance")));
+        }
+        for (Map<String, Object> row : results) {
+            System.out.println(gson.toJson(row));
+        }
+        System.err.println(results.size() + " structures found");
+    }
+
+    private static void queryDatabase(File databaseFile, String sql, int minX, int maxX, int minZ, int maxZ,
+                                      Query query, String world, List<Map<String, Object>> results) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile)) {
+            if (!hasTable(connection, "structure_bounds")) {
+                System.err.println(databaseFile + ": No structure index, re-run --structures to build it");
+                return;
+            }
+            queryDatabase(connection, sql, minX, maxX, minZ, maxZ, query, world, results);
+        }
+    }
+
+    private static boolean hasTable(Connection connection, String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM `sqlite_master` WHERE `type` = 'table' AND `name` = ?")) {
+            statement.setString(1, table);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    private static void queryDatabase(Connection connection, String sql, int minX, int maxX, int minZ, int maxZ,
+                                      Query query, String world, List<Map<String, Object>> results) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setInt(1, minX);
+            statement.setInt(2, maxX);
+            statement.setInt(3, minZ);
+            statement.setInt(4, maxZ);
+            if (query.types != null) {
+                for (int i = 0; i < query.types.size(); i += 1) {
+                    String type = query.types.get(i);
+                    statement.setString(5 + i, type.contains(":") ? type : "minecraft:" + type);
+                }
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    final int[] box = new int[6];
+                    for (int i = 0; i < 6; i += 1) {
+                        box[i] = resultSet.getInt(5 + i);
+                    }
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    if (world != null) row.put("world", world);
+                    row.put("id", resultSet.getInt(1));
+                    row.put("type", resultSet.getString(2));
+                    row.put("chunk_x", resultSet.getInt(3));
+                    row.put("chunk_z", resultSet.getInt(4));
+                    row.put("box", box);
+                    if (query.near) {
+                        final double distance = distance(query.x, query.z, box);
+                        if (distance > query.radius) continue;
+                        row.put("distance", distance);
+                    }
+                    row.put("structure", JsonParser.parseString(resultSet.getString(11)));
+                    results.add(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Horizontal distance from a point to the closest point of a
+     * bounding box, 0 if inside.
+     */
+    static double distance(int x, int z, int[] box) {
+        final double dx = Math.max(0, Math.max(box[0] - x, x - box[3]));
+        final double dz = Math.max(0, Math.max(box[2] - z, z - box[5]));
+        return Math.sqrt(dx * dx + dz * dz);
+    }
+
+    private StructureQuery() { }
+}
@@ -0,0 +1,107 @@
+package com.cavetale.nbtdump;
+
+import com.github.steveice10.opennbt.conversion.ConverterRegistry;
+import com.github.steveice10.opennbt.tag.builtin.ByteTag;
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.github.steveice10.opennbt.tag.builtin.DoubleTag;
+import com.github.steveice10.opennbt.tag.builtin.FloatTag;
+import com.github.steveice10.opennbt.tag.builtin.IntTag;
+import com.github.steveice10.opennbt.tag.builtin.ListTag;
+import com.github.steveice10.opennbt.tag.builtin.LongTag;
+import com.github.steveice10.opennbt.tag.builtin.ShortTag;
+import com.github.steveice10.opennbt.tag.builtin.StringTag;
+import com.github.steveice10.opennbt.tag.builtin.Tag;
+import java.util.Objects;
+
+/**
+ * Dotted path access directly on tags, the counterpart of
+ * Main.path() for converted values.
+ */
+final class TagPath {
+    static Tag get(Tag current, String path) {
+        for (String component : path.split("\\.")) {
+            current = child(current, component);
+            if (current == null) return null;
+        }
+        return current;
+    }
+
+    static Tag child(Tag parent, String component) {
+        if (parent instanceof CompoundTag compound) {
+            return compound.get(component);
+        } else if (parent instanceof ListTag list) {
+            final int index;
+            try {
+                index = Integer.parseInt(component);
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            return index >= 0 && index < list.size() ? list.get(index) : null;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Convert only the tag at the path to a plain value.
+     */
+    static Object getValue(Tag root, String path) {
+        Tag tag = get(root, path);
+        return tag != null ? ConverterRegistry.convertToValue(tag) : null;
+    }
+
+    /**
+     * Remove the tag at the path.
+     * @return true if something was removed
+     */
+    static boolean remove(Tag root, String path) {
+        final int dot = path.lastIndexOf('.');
+        final Tag parent = dot < 0 ? root : get(root, path.substring(0, dot));
+        final String key = path.substring(dot + 1);
+        if (parent instanceof CompoundTag compound) {
+            return compound.remove(key) != null;
+        } else if (parent instanceof ListTag list) {
+            Tag child = child(list, key);
+            return child != null && list.remove(child);
+        }
+        return false;
+    }
+
+    /**
+     * Replace the value of an existing tag.  Missing tags are not
+     * created, and the new value keeps the type of the old tag.
+     * @return true if the value changed
+     * @throws IllegalArgumentException if the value does not fit the
+     *   type of the existing tag
+     */
+    static boolean set(Tag root, String path, Object value) {
+        final int dot = path.lastIndexOf('.');
+        final Tag parent = dot < 0 ? root : get(root, path.substring(0, dot));
+        if (!(parent instanceof CompoundTag compound)) return false;
+        final String key = path.substring(dot + 1);
+        final Tag old = compound.get(key);
+        if (old == null) return false;
+        final Tag tag = value instanceof Number number
+            ? toNumberTag(old, key, number)
+            : ConverterRegistry.convertToTag(key, value);
+        if (tag == null || tag.getClass() != old.getClass()) {
+            throw new IllegalArgumentException(path + ": Cannot replace " + old.getClass().getSimpleName() + " with " + value);
+        }
+        if (Objects.deepEquals(ConverterRegistry.convertToValue(old), ConverterRegistry.convertToValue(tag))) return false;
+        compound.put(tag);
+        return true;
+    }
+
+    private static Tag toNumberTag(Tag old, String key, Number number) {
+        if (old instanceof ByteTag) return new ByteTag(key, number.byteValue());
+        if (old instanceof ShortTag) return new ShortTag(key, number.shortValue());
+        if (old instanceof IntTag) return new IntTag(key, number.intValue());
+        if (old instanceof LongTag) return new LongTag(key, number.longValue());
+        if (old instanceof FloatTag) return new FloatTag(key, number.floatValue());
+        if (old instanceof DoubleTag) return new DoubleTag(key, number.doubleValue());
+        if (old instanceof StringTag) return new StringTag(key, number.toString());
+        return ConverterRegistry.convertToTag(key, number);
+    }
+
+    private TagPath() { }
+}
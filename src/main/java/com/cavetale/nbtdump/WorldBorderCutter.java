@@ -1,103 +1,336 @@
 package com.cavetale.nbtdump;
 
+import com.cavetale.nbtdump.region.RegionFileHeader;
+import com.cavetale.nbtdump.region.RegionHeaderTable;
+import com.cavetale.nbtdump.region.SectorAllocator;
 import com.github.steveice10.opennbt.NBTIO;
 import com.github.steveice10.opennbt.conversion.ConverterRegistry;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import java.io.File;
-import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Remove everything outside the world border.  A plan is computed
+ * from region names and header tables alone, then either printed
+ * (simulate) or applied concurrently: regions fully outside are
+ * deleted, edge regions get their header rewritten in one write.
+ */
 public final class WorldBorderCutter {
+    enum Action {
+        DELETE,
+        ERASE;
+    }
+
+    /**
+     * The cut of one region file.
+     * @param chunkIndexes the chunks to erase, empty for DELETE
+     * @param bytes the bytes reclaimed, file size for DELETE, the
+     *   length truncated from the end of the file for ERASE
+     */
+    record RegionPlan(File world, WorldLayout.RegionFile regionFile, Action action, int[] chunkIndexes, long bytes) {
+        Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("world", world.getPath());
+            result.put("dimension", regionFile.dimension().name());
+            result.put("kind", regionFile.kind().folderName);
+            result.put("file", regionFile.file().getPath());
+            result.put("action", action.name().toLowerCase());
+            result.put("chunks", chunkIndexes.length);
+            result.put("bytes", bytes);
+            return result;
+        }
+    }
+
+    /**
+     * The world border as stored in level.dat, in overworld blocks.
+     */
+    record LevelBorder(double centerX, double centerZ, double size) {
+        /**
+         * The border of a dimension.  Like vanilla, the centre is
+         * divided by the coordinate scale while the size stays.
+         */
+        Border toBorder(double coordinateScale, int padding) {
+            final double x = centerX / coordinateScale;
+            final double z = centerZ / coordinateScale;
+            final double sizeh = size * 0.5;
+            final int west = (int) Math.floor(x - sizeh);
+            final int east = (int) Math.ceil(x + sizeh);
+            final int north = (int) Math.floor(z - sizeh);
+            final int south = (int) Math.ceil(z + sizeh);
+            return new Border((west >> 4) - padding, (east >> 4) + padding,
+                              (north >> 4) - padding, (south >> 4) + padding);
+        }
+    }
+
+    /**
+     * The border in chunk coordinates, padding included.
+     */
+    record Border(int westChunk, int eastChunk, int northChunk, int southChunk) {
+        boolean containsChunk(int chunkX, int chunkZ) {
+            return chunkX >= westChunk && chunkX <= eastChunk && chunkZ >= northChunk && chunkZ <= southChunk;
+        }
+
+        boolean containsRegion(int regionX, int regionZ) {
+            return regionX > (westChunk >> 5) && regionX < (eastChunk >> 5)
+                && regionZ > (northChunk >> 5) && regionZ < (southChunk >> 5);
+        }
+
+        boolean excludesRegion(int regionX, int regionZ) {
+            return regionX < (westChunk >> 5) || regionX > (eastChunk >> 5)
+                || regionZ < (northChunk >> 5) || regionZ > (southChunk >> 5);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("west_chunk", westChunk);
+            result.put("east_chunk", eastChunk);
+            result.put("north_chunk", northChunk);
+            result.put("south_chunk", southChunk);
+            return result;
+        }
+    }
+
+    /**
+     * Plan the cuts of all worlds on one parallel stream, then print
+     * or apply them.  Each world is cut at its own border.  Only the
+     * overworld is cut unless all dimensions are requested.
+     */
+    public static void cutWorldBorder(List<File> worldFolders, int padding, boolean allDimensions, boolean simulate) throws Exception {
+        System.err.println("Simulate " + simulate);
+        final Map<File, LevelBorder> levelBorders = new LinkedHashMap<>();
+        final Map<File, Border> borders = new LinkedHashMap<>();
+        final List<Map.Entry<File, WorldLayout.RegionGroup>> items = new ArrayList<>();
+        for (File worldFolder : worldFolders) {
+            final LevelBorder levelBorder = readBorder(worldFolder);
+            if (levelBorder == null) continue;
+            final List<WorldLayout.RegionGroup> groups = WorldLayout.findRegionGroups(worldFolder).stream()
+                .filter(group -> allDimensions || group.dimension().isOverworld())
+                .toList();
+            if (groups.isEmpty()) {
+                System.err.println("Region folder not found: " + worldFolder);
+                continue;
+            }
+            for (WorldLayout.Dimension dimension : WorldLayout.findDimensions(worldFolder)) {
+                if (!allDimensions && !dimension.isOverworld()) continue;
+                System.err.println("Using dimension " + dimension.name() + ": " + dimension.folder());
+            }
+            levelBorders.put(worldFolder, levelBorder);
+            borders.put(worldFolder, levelBorder.toBorder(1.0, padding));
+            for (WorldLayout.RegionGroup group : groups) {
+                items.add(Map.entry(worldFolder, group));
+            }
+        }
+        if (items.isEmpty()) return;
+        Metrics.start("cutworldborder", items.size());
+        final List<RegionPlan> plans = items.parallelStream()
+            .flatMap(item -> {
+                    try {
+                        final WorldLayout.RegionGroup group = item.getValue();
+                        final Border border = levelBorders.get(item.getKey()).toBorder(group.dimension().coordinateScale(), padding);
+                        return plan(item.getKey(), group, border).stream();
+                    } finally {
+                        Metrics.REGIONS_DONE.increment();
+                    }
+                })
+            .toList();
+        Metrics.stop();
+        if (simulate) {
+            printPlan(plans, borders);
+            return;
+        }
+        final Map<File, LongAdder[]> totals = new LinkedHashMap<>();
+        for (File worldFolder : borders.keySet()) {
+            totals.put(worldFolder, new LongAdder[] {new LongAdder(), new LongAdder(), new LongAdder()});
+        }
+        plans.parallelStream().forEach(plan -> {
+                final long bytes;
+                try {
+                    bytes = apply(plan);
+                } catch (IOException ioe) {
+                    System.err.println(plan.regionFile().file() + ": " + ioe.getMessage());
+                    return;
+                }
+                final LongAdder[] total = totals.get(plan.world());
+                if (plan.action() == Action.DELETE) total[0].increment();
+                total[1].add(plan.chunkIndexes().length);
+                total[2].add(bytes);
+            });
+        for (Map.Entry<File, LongAdder[]> entry : totals.entrySet()) {
+            final LongAdder[] total = entry.getValue();
+            System.out.println((totals.size() > 1 ? entry.getKey() + ": " : "")
+                               + "Done. Deleted " + total[0].sum() + " region files and erased " + total[1].sum() + " chunks,"
+                               + " reclaimed " + total[2].sum() + " bytes");
+        }
+    }
+
+    /**
+     * Read the world border from level.dat.
+     * @return the border or null if it is missing or not set
+     */
     @SuppressWarnings("unchecked")
-    public static void cutWorldBorder(File worldFolder, int padding, boolean simulate) throws Exception {
+    private static LevelBorder readBorder(File worldFolder) throws IOException {
         final File levelDatFile = new File(worldFolder, "level.dat");
         if (!levelDatFile.exists()) {
             System.err.println("Level dat not found: " + levelDatFile);
-            return;
+            return null;
         }
         final Map<String, Object> level = (Map<String, Object>) ConverterRegistry.convertToValue(NBTIO.readFile(levelDatFile, true, false));
         final Map<String, Object> levelData = (Map<String, Object>) level.get("Data");
         final double centerX = (Double) levelData.get("BorderCenterX");
         final double centerZ = (Double) levelData.get("BorderCenterZ");
         final double size = (Double) levelData.get("BorderSize");
-        System.out.println("Center " + centerX + " " + centerZ);
-        System.out.println("Size " + size);
-        System.out.println("Simulate " + simulate);
+        System.err.println("World " + worldFolder);
+        System.err.println("Center " + centerX + " " + centerZ);
+        System.err.println("Size " + size);
         if (size >= 5.9E7) {
             System.err.println("World Border too large or not set");
-            return;
+            return null;
+        }
+        return new LevelBorder(centerX, centerZ, size);
+    }
+
+    /**
+     * Plan all files of a region group.  Regions inside the border
+     * need nothing, regions outside are deleted without being opened,
+     * and only edge regions have their header read.
+     */
+    static List<RegionPlan> plan(File world, WorldLayout.RegionGroup group, Border border) {
+        final int regionX = group.regionX();
+        final int regionZ = group.regionZ();
+        if (border.containsRegion(regionX, regionZ)) return List.of();
+        if (border.excludesRegion(regionX, regionZ)) {
+            return group.files().stream()
+                .map(regionFile -> new RegionPlan(world, regionFile, Action.DELETE, new int[0], regionFile.file().length()))
+                .toList();
         }
-        final double sizeh = size * 0.5;
-        final int west = (int) Math.floor(centerX - sizeh);
-        final int east = (int) Math.ceil(centerX + sizeh);
-        final int north = (int) Math.floor(centerZ - sizeh);
-        final int south = (int) Math.ceil(centerZ + sizeh);
-        final int westChunk = (west >> 4) - padding;
-        final int eastChunk = (east >> 4) + padding;
-        final int northChunk = (north >> 4) - padding;
-        final int southChunk = (south >> 4) + padding;
-        final int westRegion = westChunk >> 5;
-        final int eastRegion = eastChunk >> 5;
-        final int northRegion = northChunk >> 5;
-        final int southRegion = southChunk >> 5;
-        File regionFolder = null;
-        for (String path : List.of("region", "DIM1/region", "DIM-1/region")) {
-            final File folder = new File(worldFolder, path);
-            if (folder.exists()) {
-                regionFolder = folder;
-                break;
+        return group.files().stream()
+            .map(regionFile -> planEdge(world, regionFile, border))
+            .filter(Objects::nonNull)
+            .toList();
+    }
+
+    private static RegionPlan planEdge(File world, WorldLayout.RegionFile regionFile, Border border) {
+        try {
+            if (regionFile.file().length() < RegionHeaderTable.HEADER_SIZE) {
+                System.err.println(regionFile.file() + ": File is empty");
+                return null;
+            }
+            final RegionHeaderTable header = RegionHeaderTable.read(regionFile.file());
+            final int[] indexes = new int[RegionHeaderTable.CHUNK_COUNT];
+            int count = 0;
+            for (int z = 0; z < 32; z += 1) {
+                for (int x = 0; x < 32; x += 1) {
+                    if (border.containsChunk((regionFile.regionX() << 5) + x, (regionFile.regionZ() << 5) + z)) continue;
+                    if (!header.hasChunk(x, z)) continue;
+                    indexes[count++] = RegionHeaderTable.getChunkIndex(x, z);
+                    header.setChunkLocation(x, z, 0);
+                }
             }
+            if (count == 0) return null;
+            // Erased sectors within the file stay allocated on disk,
+            // only the tail past the last remaining chunk is reclaimed
+            final long length = (long) SectorAllocator.of(header).getSectorCount() * RegionFileHeader.KIB;
+            final long bytes = Math.max(0L, regionFile.file().length() - length);
+            return new RegionPlan(world, regionFile, Action.ERASE, Arrays.copyOf(indexes, count), bytes);
+        } catch (IOException ioe) {
+            System.err.println(regionFile.file() + ": " + ioe.getMessage());
+            return null;
         }
-        if (regionFolder == null) {
-            System.err.println("Region folder not found: " + worldFolder);
-            return;
+    }
+
+    /**
+     * Delete the file, or clear the planned chunks from its header
+     * with a single positional write and truncate the sectors left
+     * unused at the end of the file.
+     * @return the bytes actually reclaimed
+     */
+    static long apply(RegionPlan plan) throws IOException {
+        final File file = plan.regionFile().file();
+        if (plan.action() == Action.DELETE) {
+            final long bytes = file.length();
+            Files.delete(file.toPath());
+            return bytes;
         }
-        System.out.println("Using region folder: " + regionFolder);
-        int deletedRegionFiles = 0;
-        int erasedChunks = 0;
-        for (File regionFile : regionFolder.listFiles()) {
-            final String name = regionFile.getName();
-            if (!name.startsWith("r.") || !name.endsWith(".mca")) continue;
-            final String[] tokens = name.split("\\.", 4);
-            final int regionX = Integer.parseInt(tokens[1]);
-            final int regionZ = Integer.parseInt(tokens[2]);
-            if (regionX > westRegion && regionX < eastRegion && regionZ > northRegion && regionZ < southRegion) {
-                continue;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final RegionHeaderTable header = RegionHeaderTable.read(channel);
+            for (int index : plan.chunkIndexes()) {
+                header.setChunkLocation(index & 31, index >> 5, 0);
+                header.setChunkTimestamp(index & 31, index >> 5, 0);
             }
-            if (regionX < westRegion || regionX > eastRegion || regionZ < northRegion || regionZ > southRegion) {
-                System.out.println(regionFile.getName() + ": Deleting Region");
-                if (!simulate) {
-                    regionFile.delete();
-                }
-                deletedRegionFiles += 1;
-                continue;
+            header.write(channel);
+            final long before = channel.size();
+            final long length = (long) SectorAllocator.of(header).getSectorCount() * RegionFileHeader.KIB;
+            if (length < before) channel.truncate(length);
+            return before - channel.size();
+        }
+    }
+
+    private static void printPlan(List<RegionPlan> plans, Map<File, Border> borders) {
+        final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+        final PrintStream out = Main.bufferedStdout();
+        final Map<File, List<RegionPlan>> worlds = new LinkedHashMap<>();
+        for (File worldFolder : borders.keySet()) {
+            worlds.put(worldFolder, new ArrayList<>());
+        }
+        for (RegionPlan plan : plans) {
+            out.println(gson.toJson(plan.toMap()));
+            worlds.get(plan.world()).add(plan);
+        }
+        final Map<String, Object> summary = summarize(plans);
+        if (borders.size() == 1) {
+            summary.put("border", borders.values().iterator().next().toMap());
+        } else {
+            final Map<String, Object> byWorld = new LinkedHashMap<>();
+            for (Map.Entry<File, List<RegionPlan>> entry : worlds.entrySet()) {
+                final Map<String, Object> worldSummary = summarize(entry.getValue());
+                worldSummary.put("border", borders.get(entry.getKey()).toMap());
+                byWorld.put(entry.getKey().getPath(), worldSummary);
             }
-            try (RandomAccessFile raf = new RandomAccessFile(regionFile, "rw")) {
-                if (raf.length() == 0L) {
-                    System.err.println(regionFile + ": File is empty");
-                    continue;
-                }
-                for (int z = 0; z < 32; z += 1) {
-                    for (int x = 0; x < 32; x += 1) {
-                        final int chunkX = (regionX << 5) + x;
-                        final int chunkZ = (regionZ << 5) + z;
-                        if (chunkX >= westChunk && chunkX <= eastChunk && chunkZ >= northChunk && chunkZ <= southChunk) {
-                            continue;
-                        }
-                        final int location = Main.getChunkLocation(raf, x, z);
-                        if (location == 0) continue;
-                        System.out.println(regionFile.getName() + ": Erasing Chunk " + chunkX + " " + chunkZ);
-                        if (!simulate) {
-                            final long offset = 4L * (long) (x + z * 32);
-                            raf.seek(offset);
-                            raf.writeInt(0);
-                        }
-                        erasedChunks += 1;
-                    }
-                }
+            summary.put("by_world", byWorld);
+        }
+        out.println(gson.toJson(Map.of("summary", summary)));
+        out.flush();
+        System.err.println("Would delete " + summary.get("delete_files") + " region files (" + summary.get("delete_bytes") + " bytes)"
+                           + " and erase " + summary.get("erase_chunks") + " chunks in " + summary.get("erase_files")
+                           + " region files (" + summary.get("erase_bytes") + " bytes)");
+    }
+
+    private static Map<String, Object> summarize(List<RegionPlan> plans) {
+        long deleteFiles = 0L;
+        long deleteBytes = 0L;
+        long eraseFiles = 0L;
+        long eraseChunks = 0L;
+        long eraseBytes = 0L;
+        for (RegionPlan plan : plans) {
+            if (plan.action() == Action.DELETE) {
+                deleteFiles += 1L;
+                deleteBytes += plan.bytes();
+            } else {
+                eraseFiles += 1L;
+                eraseChunks += plan.chunkIndexes().length;
+                eraseBytes += plan.bytes();
             }
         }
-        System.out.println("Done. Deleted " + deletedRegionFiles + " region files and erased " + erasedChunks + " chunks");
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("delete_files", deleteFiles);
+        result.put("delete_bytes", deleteBytes);
+        result.put("erase_files", eraseFiles);
+        result.put("erase_chunks", eraseChunks);
+        result.put("erase_bytes", eraseBytes);
+        result.put("total_bytes", deleteBytes + eraseBytes);
+        return result;
     }
 
     private WorldBorderCutter() { }
@@ -1,110 +1,146 @@
 package com.cavetale.nbtdump;
 
-import com.github.steveice10.opennbt.conversion.ConverterRegistry;
+import com.cavetale.nbtdump.nbt.RawNBT;
+import com.cavetale.nbtdump.region.RegionChunk;
 import java.io.File;
-import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class WorldBorderGuesser {
-    @SuppressWarnings("unchecked")
-    public static void guessWorldBorder(File worldFolder) throws Exception {
-        File regionFolder = null;
-        for (String path : List.of("region", "DIM1/region", "DIM-1/region")) {
-            final File folder = new File(worldFolder, path);
-            if (folder.exists()) {
-                regionFolder = folder;
-                break;
+    /**
+     * A region group together with the world it belongs to.
+     */
+    private record Item(File world, WorldLayout.RegionGroup group) { }
+
+    /**
+     * Scan the regions of all worlds in one run and report each world
+     * separately.
+     */
+    public static void guessWorldBorder(List<File> worldFolders) throws Exception {
+        final List<Item> items = new ArrayList<>();
+        final Map<File, Map<String, Extremes>> worlds = new LinkedHashMap<>();
+        for (File worldFolder : worldFolders) {
+            final List<WorldLayout.RegionGroup> groups = WorldLayout.findRegionGroups(worldFolder).stream()
+                .filter(g -> g.get(WorldLayout.RegionKind.REGION) != null)
+                .toList();
+            if (groups.isEmpty()) {
+                System.err.println("Region folder not found: " + worldFolder);
+                continue;
+            }
+            worlds.put(worldFolder, new ConcurrentHashMap<>());
+            for (WorldLayout.RegionGroup group : groups) {
+                items.add(new Item(worldFolder, group));
             }
         }
-        if (regionFolder == null) {
-            System.err.println("Region folder not found: " + worldFolder);
-            return;
+        if (items.isEmpty()) return;
+        Metrics.start("guessworldborder", items.size());
+        RegionPrefetcher.run(items, it -> it.group().get(WorldLayout.RegionKind.REGION).file(), (item, chunks) -> {
+                final WorldLayout.RegionGroup group = item.group();
+                worlds.get(item.world()).merge(group.dimension().name(), scanRegion(group, chunks), Extremes::merge);
+            });
+        Metrics.stop();
+        for (Map.Entry<File, Map<String, Extremes>> world : worlds.entrySet()) {
+            if (worldFolders.size() > 1) System.out.println("World " + world.getKey());
+            for (Map.Entry<String, Extremes> entry : new TreeMap<>(world.getValue()).entrySet()) {
+                System.out.println("Dimension " + entry.getKey());
+                entry.getValue().print();
+            }
+        }
+    }
+
+    private static Extremes scanRegion(WorldLayout.RegionGroup group, List<RegionChunk> chunks) {
+        final WorldLayout.RegionFile regionFile = group.get(WorldLayout.RegionKind.REGION);
+        Extremes result = new Extremes();
+        for (RegionChunk chunk : chunks) {
+            final int x = chunk.x();
+            final int z = chunk.z();
+            final boolean chunkIsEmpty;
+            final MemoryGovernor.Lease lease = MemoryGovernor.acquireRawChunk(chunk.payload());
+            try {
+                chunkIsEmpty = isEmpty(new RawNBT(Main.inflateChunk(chunk.payload())));
+            } catch (IOException | RuntimeException e) {
+                Metrics.CHUNKS_FAILED.increment();
+                System.err.println(regionFile.file() + ": " + x + " " + z + ": " + e.getMessage());
+                continue;
+            } finally {
+                lease.close();
+            }
+            Metrics.CHUNKS_DECODED.increment();
+            if (chunkIsEmpty) {
+                continue;
+            }
+            result = result.merge((group.regionX() << 5) + x, (group.regionZ() << 5) + z);
         }
-        System.err.println("Using region folder: " + regionFolder);
-        int west = Integer.MAX_VALUE;
-        int east = Integer.MIN_VALUE;
-        int north = Integer.MAX_VALUE;
-        int south = Integer.MIN_VALUE;
-        Vec2i westmost = new Vec2i(west, 0);
-        Vec2i eastmost = new Vec2i(east, 0);
-        Vec2i northmost = new Vec2i(0, north);
-        Vec2i southmost = new Vec2i(0, south);
-        for (File regionFile : regionFolder.listFiles()) {
-            final String name = regionFile.getName();
-            if (!name.startsWith("r.") || !name.endsWith(".mca")) continue;
-            final String[] tokens = name.split("\\.", 4);
-            final int regionX = Integer.parseInt(tokens[1]);
-            final int regionZ = Integer.parseInt(tokens[2]);
-            try (RandomAccessFile raf = new RandomAccessFile(regionFile, "r")) {
-                if (raf.length() == 0L) {
-                    System.err.println(regionFile + ": File is empty");
-                    continue;
-                }
-                for (int z = 0; z < 32; z += 1) {
-                    for (int x = 0; x < 32; x += 1) {
-                        final int location = Main.getChunkLocation(raf, x, z);
-                        if (location == 0) continue;
-                        boolean chunkIsEmpty = true;
-                        final Map<String, Object> tag = (Map<String, Object>) ConverterRegistry.convertToValue(Main.getAnvilTag(raf, x, z));
-                        final List<Object> sections = (List<Object>) tag.get("sections");
-                        for (int i = 0; i < sections.size(); i += 1) {
-                            final Map<String, Object> section = (Map<String, Object>) sections.get(i);
-                            final Map<String, Object> blockStates = (Map<String, Object>) section.get("block_states");
-                            final List<Object> palette = (List<Object>) blockStates.get("palette");
-                            if (palette.size() > 1) {
-                                chunkIsEmpty = false;
-                                break;
-                            }
-                            final Map<String, Object> paletteEntry = (Map<String, Object>) palette.get(0);
-                            if (!"minecraft:air".equals(paletteEntry.get("Name"))) {
-                                chunkIsEmpty = false;
-                                break;
-                            }
-                        }
-                        if (chunkIsEmpty) {
-                            continue;
-                        }
-                        final int chunkX = (regionX << 5) + x;
-                        final int chunkZ = (regionZ << 5) + z;
-                        if (chunkX < west) {
-                            west = chunkX;
-                            westmost = new Vec2i(chunkX, chunkZ);
-                        }
-                        if (chunkX > east) {
-                            east = chunkX;
-                            eastmost = new Vec2i(chunkX, chunkZ);
-                        }
-                        if (chunkZ < north) {
-                            north = chunkZ;
-                            northmost = new Vec2i(chunkX, chunkZ);
-                        }
-                        if (chunkZ > south) {
-                            south = chunkZ;
-                            southmost = new Vec2i(chunkX, chunkZ);
-                        }
-                    }
-                }
+        Metrics.REGIONS_DONE.increment();
+        return result;
+    }
+
+    /**
+     * A chunk is empty if every section has air as its only block
+     * state.  Only the section palettes are looked at, straight from
+     * the uncompressed bytes.
+     */
+    private static boolean isEmpty(RawNBT nbt) {
+        final RawNBT.Ref sections = nbt.get(nbt.root(), "sections");
+        for (RawNBT.Ref section : nbt.elements(sections)) {
+            final RawNBT.Ref palette = nbt.path(section, "block_states.palette");
+            if (palette == null || palette.type() != RawNBT.LIST) throw new IllegalStateException("Missing block_states palette");
+            if (nbt.size(palette) > 1) return false;
+            if (!"minecraft:air".equals(nbt.getString(nbt.path(palette, "0.Name")))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The outermost non-empty chunks seen so far.
+     */
+    private record Extremes(Vec2i westmost, Vec2i eastmost, Vec2i northmost, Vec2i southmost) {
+        Extremes() {
+            this(new Vec2i(Integer.MAX_VALUE, 0), new Vec2i(Integer.MIN_VALUE, 0),
+                 new Vec2i(0, Integer.MAX_VALUE), new Vec2i(0, Integer.MIN_VALUE));
+        }
+
+        Extremes merge(int chunkX, int chunkZ) {
+            final Vec2i chunk = new Vec2i(chunkX, chunkZ);
+            return merge(new Extremes(chunk, chunk, chunk, chunk));
+        }
+
+        Extremes merge(Extremes other) {
+            return new Extremes(other.westmost.x() < westmost.x() ? other.westmost : westmost,
+                                other.eastmost.x() > eastmost.x() ? other.eastmost : eastmost,
+                                other.northmost.z() < northmost.z() ? other.northmost : northmost,
+                                other.southmost.z() > southmost.z() ? other.southmost : southmost);
+        }
+
+        void print() {
+            if (westmost.x() == Integer.MAX_VALUE) {
+                System.out.println(" No non-empty chunks found");
+                return;
             }
+            int west = westmost.x() << 4;
+            int east = (eastmost.x() << 4) + 15;
+            int north = northmost.z() << 4;
+            int south = (southmost.z() << 4) + 15;
+            int centerX = (west + east) / 2;
+            int centerZ = (north + south) / 2;
+            int sizeX = east - west + 1;
+            int sizeZ = south - north + 1;
+            System.out.println("Guessing World Border");
+            System.out.println(" x: " + west + " " + east);
+            System.out.println(" z: " + north + " " + south);
+            System.out.println(" center: " + centerX + " " + centerZ);
+            System.out.println(" size: " + sizeX + " " + sizeZ);
+            System.out.println("Extremes");
+            System.out.println(" west: " + westmost + " " + westmost.toBlock());
+            System.out.println(" east: " + eastmost + " " + eastmost.toBlock());
+            System.out.println(" north: " + northmost + " " + northmost.toBlock());
+            System.out.println(" south: " + southmost + " " + southmost.toBlock());
         }
-        west = west << 4;
-        east = (east << 4) + 15;
-        north = north << 4;
-        south = (south << 4) + 15;
-        int centerX = (west + east) / 2;
-        int centerZ = (north + south) / 2;
-        int sizeX = east - west + 1;
-        int sizeZ = south - north + 1;
-        System.out.println("Guessing World Border");
-        System.out.println(" x: " + west + " " + east);
-        System.out.println(" z: " + north + " " + south);
-        System.out.println(" center: " + centerX + " " + centerZ);
-        System.out.println(" size: " + sizeX + " " + sizeZ);
-        System.out.println("Extremes");
-        System.out.println(" west: " + westmost + " " + westmost.toBlock());
-        System.out.println(" east: " + eastmost + " " + eastmost.toBlock());
-        System.out.println(" north: " + northmost + " " + northmost.toBlock());
-        System.out.println(" south: " + southmost + " " + southmost.toBlock());
     }
 
     private record Vec2i(int x, int z) {
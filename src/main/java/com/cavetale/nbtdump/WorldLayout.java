@@ -0,0 +1,172 @@
+package com.cavetale.nbtdump;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discover all dimensions of a world folder and the region format
+ * files within them: terrain, entities and points of interest.
+ */
+final class WorldLayout {
+    enum RegionKind {
+        REGION("region"),
+        ENTITIES("entities"),
+        POI("poi");
+
+        final String folderName;
+
+        RegionKind(final String folderName) {
+            this.folderName = folderName;
+        }
+    }
+
+    record Dimension(String name, File folder) {
+        boolean isOverworld() {
+            return name.equals("overworld");
+        }
+
+        /**
+         * Blocks in this dimension per block in the overworld, as
+         * given by the vanilla dimension types.  Custom dimensions are
+         * assumed to use 1.
+         */
+        double coordinateScale() {
+            return name.equals("the_nether") ? 8.0 : 1.0;
+        }
+    }
+
+    record RegionFile(Dimension dimension, RegionKind kind, File file, int regionX, int regionZ) { }
+
+    /**
+     * All region files of one dimension sharing the same region
+     * coordinates, so they can be processed together.
+     */
+    record RegionGroup(Dimension dimension, int regionX, int regionZ, List<RegionFile> files) {
+        RegionFile get(RegionKind kind) {
+            for (RegionFile it : files) {
+                if (it.kind() == kind) return it;
+            }
+            return null;
+        }
+
+        String getName() {
+            return dimension.name() + "/r." + regionX + "." + regionZ;
+        }
+    }
+
+    /**
+     * Expand the world arguments of a script.  Each argument is either
+     * a world folder or a manifest file listing one world folder per
+     * line.  Blank lines and lines starting with # are ignored and
+     * relative paths are resolved against the manifest.
+     */
+    static List<File> findWorlds(List<String> args) throws IOException {
+        List<File> result = new ArrayList<>();
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isFile()) {
+                File base = file.getAbsoluteFile().getParentFile();
+                for (String line : Files.readAllLines(file.toPath())) {
+                    line = line.strip();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    File world = new File(line);
+                    result.add(world.isAbsolute() ? world : new File(base, line));
+                }
+            } else {
+                result.add(file);
+            }
+        }
+        result.removeIf(world -> {
+                if (world.isDirectory()) return false;
+                System.err.println("World not found: " + world);
+                return true;
+            });
+        return result;
+    }
+
+    static List<Dimension> findDimensions(File worldFolder) {
+        List<Dimension> result = new ArrayList<>();
+        if (isDimensionFolder(worldFolder)) result.add(new Dimension("overworld", worldFolder));
+        File nether = new File(worldFolder, "DIM-1");
+        if (isDimensionFolder(nether)) result.add(new Dimension("the_nether", nether));
+        File end = new File(worldFolder, "DIM1");
+        if (isDimensionFolder(end)) result.add(new Dimension("the_end", end));
+        File[] namespaces = new File(worldFolder, "dimensions").listFiles(File::isDirectory);
+        if (namespaces != null) {
+            for (File namespace : namespaces) {
+                findCustomDimensions(namespace.getName() + ":", namespace, result);
+            }
+        }
+        return result;
+    }
+
+    private static void findCustomDimensions(String prefix, File folder, List<Dimension> result) {
+        File[] children = folder.listFiles(File::isDirectory);
+        if (children == null) return;
+        for (File child : children) {
+            if (isDimensionFolder(child)) {
+                result.add(new Dimension(prefix + child.getName(), child));
+            } else {
+                findCustomDimensions(prefix + child.getName() + "/", child, result);
+            }
+        }
+    }
+
+    private static boolean isDimensionFolder(File folder) {
+        for (RegionKind kind : RegionKind.values()) {
+            if (new File(folder, kind.folderName).isDirectory()) return true;
+        }
+        return false;
+    }
+
+    static List<RegionFile> findRegionFiles(File worldFolder) {
+        List<RegionFile> result = new ArrayList<>();
+        for (Dimension dimension : findDimensions(worldFolder)) {
+            for (RegionKind kind : RegionKind.values()) {
+                File[] files = new File(dimension.folder(), kind.folderName).listFiles();
+                if (files == null) continue;
+                for (File file : files) {
+                    final String name = file.getName();
+                    if (!name.startsWith("r.") || !name.endsWith(".mca")) continue;
+                    final String[] tokens = name.split("\\.", 4);
+                    if (tokens.length != 4) continue;
+                    try {
+                        result.add(new RegionFile(dimension, kind, file, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
+                    } catch (NumberFormatException nfe) {
+                        System.err.println(file + ": Invalid region file name");
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Group region files by dimension and coordinates, sorted for
+     * locality.
+     */
+    static List<RegionGroup> findRegionGroups(File worldFolder) {
+        Map<String, List<RegionFile>> map = new LinkedHashMap<>();
+        for (RegionFile it : findRegionFiles(worldFolder)) {
+            String key = it.dimension().name() + "/" + it.regionX() + "/" + it.regionZ();
+            map.computeIfAbsent(key, k -> new ArrayList<>()).add(it);
+        }
+        List<RegionGroup> result = new ArrayList<>(map.size());
+        for (List<RegionFile> files : map.values()) {
+            RegionFile first = files.get(0);
+            result.add(new RegionGroup(first.dimension(), first.regionX(), first.regionZ(), List.copyOf(files)));
+        }
+        result.sort(Comparator.comparing((RegionGroup g) -> g.dimension().name())
+                    .thenComparingInt(RegionGroup::regionZ)
+                    .thenComparingInt(RegionGroup::regionX));
+        return result;
+    }
+
+    private WorldLayout() { }
+}
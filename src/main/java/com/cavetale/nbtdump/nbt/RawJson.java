@@ -0,0 +1,78 @@
+package com.cavetale.nbtdump.nbt;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * Write raw NBT as JSON straight from the bytes, in the shape Gson
+ * gives the values of OpenNBT's ConverterRegistry.  Used for chunks
+ * too large to hold as a tag tree.
+ */
+public final class RawJson {
+    public static void write(final JsonWriter out, final RawNBT nbt, final RawNBT.Ref ref) throws IOException {
+        final int pos = ref.pos();
+        switch (ref.type()) {
+        case RawNBT.BYTE: case RawNBT.SHORT: case RawNBT.INT:
+            out.value(nbt.getInt(ref, 0));
+            break;
+        case RawNBT.LONG: out.value(nbt.readLong(pos)); break;
+        case RawNBT.FLOAT: out.value(Float.valueOf(Float.intBitsToFloat(nbt.readInt(pos)))); break;
+        case RawNBT.DOUBLE: out.value(Double.valueOf(Double.longBitsToDouble(nbt.readLong(pos)))); break;
+        case RawNBT.STRING: out.value(nbt.readString(pos)); break;
+        case RawNBT.BYTE_ARRAY: {
+            out.beginArray();
+            final int size = nbt.readSize(pos);
+            for (int i = 0; i < size; i += 1) {
+                out.value(nbt.getData()[pos + 4 + i]);
+            }
+            out.endArray();
+            break;
+        }
+        case RawNBT.INT_ARRAY: {
+            out.beginArray();
+            final int size = nbt.readSize(pos);
+            for (int i = 0; i < size; i += 1) {
+                out.value(nbt.readInt(pos + 4 + 4 * i));
+            }
+            out.endArray();
+            break;
+        }
+        case RawNBT.LONG_ARRAY: {
+            out.beginArray();
+            final int size = nbt.readSize(pos);
+            for (int i = 0; i < size; i += 1) {
+                out.value(nbt.readLong(pos + 4 + 8 * i));
+            }
+            out.endArray();
+            break;
+        }
+        case RawNBT.LIST:
+            out.beginArray();
+            for (RawNBT.Ref element : nbt.elements(ref)) {
+                write(out, nbt, element);
+            }
+            out.endArray();
+            break;
+        case RawNBT.COMPOUND: {
+            out.beginObject();
+            final IOException[] error = new IOException[1];
+            nbt.forEach(ref, (name, value) -> {
+                    try {
+                        out.name(name);
+                        write(out, nbt, value);
+                        return true;
+                    } catch (IOException ioe) {
+                        error[0] = ioe;
+                        return false;
+                    }
+                });
+            if (error[0] != null) throw error[0];
+            out.endObject();
+            break;
+        }
+        default: throw new IllegalStateException("Invalid tag type " + ref.type() + " at " + pos);
+        }
+    }
+
+    private RawJson() { }
+}
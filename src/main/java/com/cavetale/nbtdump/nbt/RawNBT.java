@@ -0,0 +1,388 @@
+package com.cavetale.nbtdump.nbt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only cursor over uncompressed big endian NBT in a byte array.
+ * Nothing is parsed until asked for: lookups skip over sibling tags
+ * by their encoded length, so finding a few values in a large chunk
+ * costs a scan of its bytes but no allocation.
+ */
+public final class RawNBT {
+    public static final int END = 0;
+    public static final int BYTE = 1;
+    public static final int SHORT = 2;
+    public static final int INT = 3;
+    public static final int LONG = 4;
+    public static final int FLOAT = 5;
+    public static final int DOUBLE = 6;
+    public static final int BYTE_ARRAY = 7;
+    public static final int STRING = 8;
+    public static final int LIST = 9;
+    public static final int COMPOUND = 10;
+    public static final int INT_ARRAY = 11;
+    public static final int LONG_ARRAY = 12;
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    /**
+     * A tag payload: its type and the position where the payload
+     * starts.
+     */
+    public record Ref(int type, int pos) { }
+
+    @FunctionalInterface
+    public interface EntryVisitor {
+        /**
+         * @return false to stop iterating
+         */
+        boolean visit(String name, Ref value);
+    }
+
+    public RawNBT(final byte[] data, final int offset, final int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public RawNBT(final byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * The payload of the named root tag.
+     */
+    public Ref root() {
+        check(offset, 3);
+        final int type = data[offset] & 0xff;
+        if (type == END) return null;
+        return new Ref(type, offset + 3 + readUnsignedShort(offset + 1));
+    }
+
+    /**
+     * The position right behind the root tag.
+     */
+    public int rootEnd() {
+        final Ref root = root();
+        return root != null ? end(root) : offset + 1;
+    }
+
+    private void check(final int pos, final int count) {
+        if (pos < offset || pos + count > offset + length) {
+            throw new IllegalStateException("NBT out of bounds: " + pos + "+" + count);
+        }
+    }
+
+    public int readUnsignedShort(final int pos) {
+        check(pos, 2);
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    public int readInt(final int pos) {
+        check(pos, 4);
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    /**
+     * Read the element count of an array or list.
+     */
+    public int readSize(final int pos) {
+        final int size = readInt(pos);
+        if (size < 0) {
+            throw new IllegalStateException("NBT negative size: " + size + " at " + pos);
+        }
+        return size;
+    }
+
+    public long readLong(final int pos) {
+        return ((long) readInt(pos) << 32) | ((long) readInt(pos + 4) & 0xffffffffL);
+    }
+
+    /**
+     * Read a length prefixed modified UTF-8 string.
+     */
+    public String readString(final int pos) {
+        final int len = readUnsignedShort(pos);
+        check(pos + 2, len);
+        for (int i = 0; i < len; i += 1) {
+            if (data[pos + 2 + i] < 0) {
+                try {
+                    return new DataInputStream(new ByteArrayInputStream(data, pos, len + 2)).readUTF();
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+        }
+        return new String(data, pos + 2, len, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compare a length prefixed string with an encoded key.
+     */
+    private boolean nameEquals(final int pos, final byte[] key) {
+        final int len = readUnsignedShort(pos);
+        if (len != key.length) return false;
+        for (int i = 0; i < len; i += 1) {
+            if (data[pos + 2 + i] != key[i]) return false;
+        }
+        return true;
+    }
+
+    public static byte[] encodeName(final String name) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(name.length() + 2);
+        try {
+            new DataOutputStream(baos).writeUTF(name);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        final byte[] bytes = baos.toByteArray();
+        return Arrays.copyOfRange(bytes, 2, bytes.length);
+    }
+
+    /**
+     * Find the position behind a payload.
+     */
+    public int end(final Ref ref) {
+        return skip(ref.type(), ref.pos());
+    }
+
+    public int skip(final int type, final int pos) {
+        switch (type) {
+        case BYTE: return pos + 1;
+        case SHORT: return pos + 2;
+        case INT: case FLOAT: return pos + 4;
+        case LONG: case DOUBLE: return pos + 8;
+        case BYTE_ARRAY: return skipElements(pos + 4, readSize(pos), 1);
+        case STRING: return pos + 2 + readUnsignedShort(pos);
+        case INT_ARRAY: return skipElements(pos + 4, readSize(pos), 4);
+        case LONG_ARRAY: return skipElements(pos + 4, readSize(pos), 8);
+        case LIST: {
+            check(pos, 5);
+            final int elementType = data[pos] & 0xff;
+            final int size = readSize(pos + 1);
+            int p = pos + 5;
+            switch (elementType) {
+            case END: return p;
+            case BYTE: return skipElements(p, size, 1);
+            case SHORT: return skipElements(p, size, 2);
+            case INT: case FLOAT: return skipElements(p, size, 4);
+            case LONG: case DOUBLE: return skipElements(p, size, 8);
+            default:
+                for (int i = 0; i < size; i += 1) p = skip(elementType, p);
+                return p;
+            }
+        }
+        case COMPOUND: {
+            int p = pos;
+            while (true) {
+                check(p, 1);
+                final int childType = data[p] & 0xff;
+                if (childType == END) return p + 1;
+                p = skip(childType, p + 3 + readUnsignedShort(p + 1));
+            }
+        }
+        default: throw new IllegalStateException("Invalid tag type " + type + " at " + pos);
+        }
+    }
+
+    /**
+     * Skip fixed width elements, computed as long so that a corrupt
+     * size cannot overflow into a position within the data.
+     */
+    private int skipElements(final int pos, final int count, final int width) {
+        final long end = (long) pos + (long) count * width;
+        if (end > offset + length) {
+            throw new IllegalStateException("NBT out of bounds: " + pos + "+" + count + "*" + width);
+        }
+        return (int) end;
+    }
+
+    /**
+     * Find a child of a compound by its encoded name.
+     */
+    public Ref get(final Ref compound, final byte[] key) {
+        if (compound == null || compound.type() != COMPOUND) return null;
+        int p = compound.pos();
+        while (true) {
+            check(p, 1);
+            final int childType = data[p] & 0xff;
+            if (childType == END) return null;
+            final int payload = p + 3 + readUnsignedShort(p + 1);
+            if (nameEquals(p + 1, key)) return new Ref(childType, payload);
+            p = skip(childType, payload);
+        }
+    }
+
+    public Ref get(final Ref compound, final String key) {
+        return get(compound, encodeName(key));
+    }
+
+    public void forEach(final Ref compound, final EntryVisitor visitor) {
+        if (compound == null || compound.type() != COMPOUND) return;
+        int p = compound.pos();
+        while (true) {
+            check(p, 1);
+            final int childType = data[p] & 0xff;
+            if (childType == END) return;
+            final int payload = p + 3 + readUnsignedShort(p + 1);
+            if (!visitor.visit(readString(p + 1), new Ref(childType, payload))) return;
+            p = skip(childType, payload);
+        }
+    }
+
+    public int listType(final Ref list) {
+        check(list.pos(), 1);
+        return data[list.pos()] & 0xff;
+    }
+
+    /**
+     * The element count of a list or array.
+     */
+    public int size(final Ref ref) {
+        switch (ref.type()) {
+        case LIST: return readSize(ref.pos() + 1);
+        case BYTE_ARRAY: case INT_ARRAY: case LONG_ARRAY: return readSize(ref.pos());
+        case COMPOUND: {
+            final int[] count = new int[1];
+            forEach(ref, (n, v) -> {
+                    count[0] += 1;
+                    return true;
+                });
+            return count[0];
+        }
+        default: return 0;
+        }
+    }
+
+    /**
+     * All elements of a list, found in one pass.
+     */
+    public List<Ref> elements(final Ref list) {
+        if (list == null || list.type() != LIST) return List.of();
+        final int elementType = listType(list);
+        final int size = readSize(list.pos() + 1);
+        final List<Ref> result = new ArrayList<>(size);
+        int p = list.pos() + 5;
+        for (int i = 0; i < size; i += 1) {
+            result.add(new Ref(elementType, p));
+            p = skip(elementType, p);
+        }
+        return result;
+    }
+
+    public Ref element(final Ref list, final int index) {
+        if (list == null || list.type() != LIST) return null;
+        final int elementType = listType(list);
+        if (index < 0 || index >= readSize(list.pos() + 1)) return null;
+        int p = list.pos() + 5;
+        for (int i = 0; i < index; i += 1) p = skip(elementType, p);
+        return new Ref(elementType, p);
+    }
+
+    /**
+     * Follow a dotted path of compound keys and list indexes, like
+     * Main.path().
+     */
+    public Ref path(Ref current, final String path) {
+        for (String component : path.split("\\.")) {
+            if (current == null) return null;
+            if (current.type() == COMPOUND) {
+                current = get(current, component);
+            } else if (current.type() == LIST) {
+                try {
+                    current = element(current, Integer.parseInt(component));
+                } catch (NumberFormatException nfe) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    public int getInt(final Ref ref, final int dfl) {
+        if (ref == null) return dfl;
+        switch (ref.type()) {
+        case BYTE: return data[ref.pos()];
+        case SHORT: return (short) readUnsignedShort(ref.pos());
+        case INT: return readInt(ref.pos());
+        case LONG: return (int) readLong(ref.pos());
+        default: return dfl;
+        }
+    }
+
+    public String getString(final Ref ref) {
+        return ref != null && ref.type() == STRING ? readString(ref.pos()) : null;
+    }
+
+    public int[] getIntArray(final Ref ref) {
+        if (ref == null || ref.type() != INT_ARRAY) return null;
+        final int[] result = new int[readSize(ref.pos())];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = readInt(ref.pos() + 4 + 4 * i);
+        }
+        return result;
+    }
+
+    /**
+     * Convert a payload to the plain Java value which OpenNBT's
+     * ConverterRegistry would produce.
+     */
+    public Object toValue(final Ref ref) {
+        if (ref == null) return null;
+        final int pos = ref.pos();
+        switch (ref.type()) {
+        case BYTE: check(pos, 1); return data[pos];
+        case SHORT: return (short) readUnsignedShort(pos);
+        case INT: return readInt(pos);
+        case LONG: return readLong(pos);
+        case FLOAT: return Float.intBitsToFloat(readInt(pos));
+        case DOUBLE: return Double.longBitsToDouble(readLong(pos));
+        case STRING: return readString(pos);
+        case BYTE_ARRAY: {
+            final int len = readSize(pos);
+            check(pos + 4, len);
+            return Arrays.copyOfRange(data, pos + 4, pos + 4 + len);
+        }
+        case INT_ARRAY: return getIntArray(ref);
+        case LONG_ARRAY: {
+            final long[] result = new long[readSize(pos)];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = readLong(pos + 4 + 8 * i);
+            }
+            return result;
+        }
+        case LIST: {
+            final List<Object> result = new ArrayList<>();
+            for (Ref element : elements(ref)) result.add(toValue(element));
+            return result;
+        }
+        case COMPOUND: {
+            final Map<String, Object> result = new LinkedHashMap<>();
+            forEach(ref, (name, value) -> {
+                    result.put(name, toValue(value));
+                    return true;
+                });
+            return result;
+        }
+        default: throw new IllegalStateException("Invalid tag type " + ref.type() + " at " + pos);
+        }
+    }
+}
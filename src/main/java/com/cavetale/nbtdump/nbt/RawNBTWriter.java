@@ -0,0 +1,66 @@
+package com.cavetale.nbtdump.nbt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Streaming NBT encoder.  Subtrees of a RawNBT are copied through as
+ * bytes, so re-encoding an extracted tag never builds a tag tree.
+ */
+public final class RawNBTWriter {
+    private final ByteArrayOutputStream bytes;
+    private final DataOutputStream out;
+
+    public RawNBTWriter(final int initialSize) {
+        this.bytes = new ByteArrayOutputStream(initialSize);
+        this.out = new DataOutputStream(bytes);
+    }
+
+    public RawNBTWriter() {
+        this(1024);
+    }
+
+    /**
+     * Write a named tag whose payload is copied from the source.
+     */
+    public RawNBTWriter writeRaw(final String name, final RawNBT source, final RawNBT.Ref ref) {
+        try {
+            out.writeByte(ref.type());
+            out.writeUTF(name);
+            final int end = source.end(ref);
+            out.write(source.getData(), ref.pos(), end - ref.pos());
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    public RawNBTWriter beginCompound(final String name) {
+        try {
+            out.writeByte(RawNBT.COMPOUND);
+            out.writeUTF(name);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    public RawNBTWriter endCompound() {
+        try {
+            out.writeByte(RawNBT.END);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    public int size() {
+        return bytes.size();
+    }
+
+    public byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+}
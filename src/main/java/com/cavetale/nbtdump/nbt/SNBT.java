@@ -0,0 +1,113 @@
+package com.cavetale.nbtdump.nbt;
+
+import java.util.regex.Pattern;
+
+/**
+ * Render raw NBT as stringified NBT, the text format of Minecraft
+ * commands, straight from the bytes.
+ */
+public final class SNBT {
+    private static final Pattern PLAIN_KEY = Pattern.compile("[A-Za-z0-9._+-]+");
+
+    public static String toString(final RawNBT nbt, final RawNBT.Ref ref) {
+        final StringBuilder sb = new StringBuilder();
+        append(sb, nbt, ref);
+        return sb.toString();
+    }
+
+    public static void append(final StringBuilder sb, final RawNBT nbt, final RawNBT.Ref ref) {
+        final int pos = ref.pos();
+        switch (ref.type()) {
+        case RawNBT.BYTE: sb.append(nbt.getInt(ref, 0)).append('b'); break;
+        case RawNBT.SHORT: sb.append(nbt.getInt(ref, 0)).append('s'); break;
+        case RawNBT.INT: sb.append(nbt.readInt(pos)); break;
+        case RawNBT.LONG: sb.append(nbt.readLong(pos)).append('L'); break;
+        case RawNBT.FLOAT: sb.append(Float.intBitsToFloat(nbt.readInt(pos))).append('f'); break;
+        case RawNBT.DOUBLE: sb.append(Double.longBitsToDouble(nbt.readLong(pos))).append('d'); break;
+        case RawNBT.STRING: quote(sb, nbt.readString(pos)); break;
+        case RawNBT.BYTE_ARRAY: {
+            sb.append("[B;");
+            final int size = nbt.readSize(pos);
+            for (int i = 0; i < size; i += 1) {
+                if (i > 0) sb.append(',');
+                sb.append(nbt.getData()[pos + 4 + i]).append('b');
+            }
+            sb.append(']');
+            break;
+        }
+        case RawNBT.INT_ARRAY: {
+            sb.append("[I;");
+            final int size = nbt.readSize(pos);
+            for (int i = 0; i < size; i += 1) {
+                if (i > 0) sb.append(',');
+                sb.append(nbt.readInt(pos + 4 + 4 * i));
+            }
+            sb.append(']');
+            break;
+        }
+        case RawNBT.LONG_ARRAY: {
+            sb.append("[L;");
+            final int size = nbt.readSize(pos);
+            for (int i = 0; i < size; i += 1) {
+                if (i > 0) sb.append(',');
+                sb.append(nbt.readLong(pos + 4 + 8 * i)).append('L');
+            }
+            sb.append(']');
+            break;
+        }
+        case RawNBT.LIST: {
+            sb.append('[');
+            boolean first = true;
+            for (RawNBT.Ref element : nbt.elements(ref)) {
+                if (!first) sb.append(',');
+                first = false;
+                append(sb, nbt, element);
+            }
+            sb.append(']');
+            break;
+        }
+        case RawNBT.COMPOUND: {
+            sb.append('{');
+            final boolean[] first = {true};
+            nbt.forEach(ref, (name, value) -> {
+                    if (!first[0]) sb.append(',');
+                    first[0] = false;
+                    if (PLAIN_KEY.matcher(name).matches()) {
+                        sb.append(name);
+                    } else {
+                        quote(sb, name);
+                    }
+                    sb.append(':');
+                    append(sb, nbt, value);
+                    return true;
+                });
+            sb.append('}');
+            break;
+        }
+        default: throw new IllegalStateException("Invalid tag type " + ref.type() + " at " + pos);
+        }
+    }
+
+    private static void quote(final StringBuilder sb, final String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i += 1) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if (c < 0x20 || c == 0x7f) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    private SNBT() { }
+}
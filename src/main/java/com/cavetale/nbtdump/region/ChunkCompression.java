@@ -0,0 +1,54 @@
+package com.cavetale.nbtdump.region;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compression schemes of chunk payloads as stored in the byte
+ * following the chunk length.
+ */
+public final class ChunkCompression {
+    public static final int GZIP = 1;
+    public static final int ZLIB = 2;
+    public static final int NONE = 3;
+    /** Flag set when the payload lives in an external .mcc file. */
+    public static final int EXTERNAL = 128;
+
+    public static byte[] decompress(final int compressionType, final byte[] data, final int offset, final int length) throws IOException {
+        InputStream inp = new ByteArrayInputStream(data, offset, length);
+        switch (compressionType) {
+        case GZIP: inp = new GZIPInputStream(inp); break;
+        case ZLIB: inp = new InflaterInputStream(inp); break;
+        case NONE: break;
+        default: throw new IOException("Unsupported compression type: " + compressionType);
+        }
+        return inp.readAllBytes();
+    }
+
+    public static byte[] decompress(final int compressionType, final byte[] data) throws IOException {
+        return decompress(compressionType, data, 0, data.length);
+    }
+
+    public static byte[] compress(final int compressionType, final byte[] raw) throws IOException {
+        if (compressionType == NONE) return raw;
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(raw.length / 4 + 64);
+        final OutputStream out;
+        switch (compressionType) {
+        case GZIP: out = new GZIPOutputStream(baos); break;
+        case ZLIB: out = new DeflaterOutputStream(baos); break;
+        default: throw new IOException("Unsupported compression type: " + compressionType);
+        }
+        out.write(raw);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private ChunkCompression() { }
+}
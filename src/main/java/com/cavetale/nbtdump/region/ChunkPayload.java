@@ -0,0 +1,18 @@
+package com.cavetale.nbtdump.region;
+
+/**
+ * The compressed payload of one chunk, without the length prefix.
+ */
+public record ChunkPayload(int compressionType, byte[] data) {
+    /**
+     * The number of bytes this payload occupies in a region file,
+     * including length and compression type.
+     */
+    public int getStoredLength() {
+        return 5 + data.length;
+    }
+
+    public int getSectorCount() {
+        return (int) ((getStoredLength() + RegionFileHeader.KIB - 1L) / RegionFileHeader.KIB);
+    }
+}
@@ -0,0 +1,7 @@
+package com.cavetale.nbtdump.region;
+
+/**
+ * A chunk read from a region file, with its coordinates within the
+ * region.
+ */
+public record RegionChunk(int x, int z, int timestamp, ChunkPayload payload) { }
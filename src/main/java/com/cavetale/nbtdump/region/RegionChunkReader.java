@@ -0,0 +1,126 @@
+package com.cavetale.nbtdump.region;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Read all chunks of a region file in on-disk order.  Chunk locations
+ * are sorted by sector offset and neighbouring chunks are coalesced
+ * into one large positional read, so a scan of a fragmented file
+ * becomes a handful of sequential reads instead of one seek per
+ * chunk.
+ */
+public final class RegionChunkReader {
+    /**
+     * @param maxGapSectors read through gaps of up to this many unused
+     *   sectors rather than starting a new read
+     * @param maxRunSectors upper bound for a single read
+     */
+    public record Options(int maxGapSectors, int maxRunSectors) {
+        public static final Options DEFAULT = new Options(4, 1024);
+    }
+
+    /**
+     * A planned read of consecutive sectors covering some chunks.
+     */
+    public record Run(int offset, int sectorCount, List<Integer> chunkIndexes) { }
+
+    public static List<Run> plan(final RegionHeaderTable header, final Options options) {
+        final List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < RegionHeaderTable.CHUNK_COUNT; i += 1) {
+            if (header.getChunkLocation(i) != 0) indexes.add(i);
+        }
+        indexes.sort(Comparator.comparingInt(i -> RegionFileHeader.locationToOffset(header.getChunkLocation(i))));
+        final List<Run> result = new ArrayList<>();
+        int runOffset = -1;
+        int runEnd = -1;
+        List<Integer> runIndexes = null;
+        for (int index : indexes) {
+            final int location = header.getChunkLocation(index);
+            final int offset = RegionFileHeader.locationToOffset(location);
+            final int end = offset + RegionFileHeader.locationToSectorCount(location);
+            if (offset < 2) continue;
+            if (runIndexes != null
+                && offset <= runEnd + options.maxGapSectors()
+                && Math.max(runEnd, end) - runOffset <= options.maxRunSectors()) {
+                runEnd = Math.max(runEnd, end);
+                runIndexes.add(index);
+                continue;
+            }
+            if (runIndexes != null) result.add(new Run(runOffset, runEnd - runOffset, runIndexes));
+            runOffset = offset;
+            runEnd = end;
+            runIndexes = new ArrayList<>();
+            runIndexes.add(index);
+        }
+        if (runIndexes != null) result.add(new Run(runOffset, runEnd - runOffset, runIndexes));
+        return result;
+    }
+
+    /**
+     * Read every chunk listed in the header.  Chunks which are
+     * truncated or otherwise invalid are reported to stderr and
+     * skipped.
+     * @param bytesRead receives the size of every read, may be null
+     * @param name the file name for error messages
+     * @return the chunks in header order
+     */
+    public static List<RegionChunk> readChunks(final FileChannel channel, final RegionHeaderTable header, final Options options,
+                                               final LongConsumer bytesRead, final String name) throws IOException {
+        final RegionChunk[] chunks = new RegionChunk[RegionHeaderTable.CHUNK_COUNT];
+        for (Run run : plan(header, options)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(run.sectorCount() * (int) RegionFileHeader.KIB);
+            final long position = (long) run.offset() * RegionFileHeader.KIB;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) break;
+            }
+            if (bytesRead != null) bytesRead.accept(buffer.position());
+            final int limit = buffer.position();
+            for (int index : run.chunkIndexes()) {
+                final int x = index % 32;
+                final int z = index / 32;
+                final int location = header.getChunkLocation(index);
+                final int start = (RegionFileHeader.locationToOffset(location) - run.offset()) * (int) RegionFileHeader.KIB;
+                if (start + 5 > limit) {
+                    System.err.println(name + ": Chunk truncated: " + x + " " + z);
+                    continue;
+                }
+                final int length = buffer.getInt(start);
+                final int compressionType = buffer.get(start + 4) & 0xff;
+                if (length < 1 || start + 4 + length > limit
+                    || length > RegionFileHeader.locationToSectorCount(location) * (int) RegionFileHeader.KIB) {
+                    System.err.println(name + ": Invalid chunk length " + length + ": " + x + " " + z);
+                    continue;
+                }
+                if ((compressionType & ChunkCompression.EXTERNAL) != 0) {
+                    System.err.println(name + ": External chunk not supported: " + x + " " + z);
+                    continue;
+                }
+                final byte[] data = new byte[length - 1];
+                buffer.get(start + 5, data);
+                chunks[index] = new RegionChunk(x, z, header.getChunkTimestamp(x, z), new ChunkPayload(compressionType, data));
+            }
+        }
+        final List<RegionChunk> result = new ArrayList<>();
+        for (RegionChunk chunk : chunks) {
+            if (chunk != null) result.add(chunk);
+        }
+        return result;
+    }
+
+    public static List<RegionChunk> readChunks(final File file, final Options options, final LongConsumer bytesRead) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < RegionHeaderTable.HEADER_SIZE) return List.of();
+            return readChunks(channel, RegionHeaderTable.read(channel), options, bytesRead, file.toString());
+        }
+    }
+
+    private RegionChunkReader() { }
+}
@@ -34,6 +34,10 @@ public interface RegionFileHeader {
         return location & 0xff;
     }
 
+    static int toLocation(final int offset, final int sectorCount) {
+        return (offset << 8) | (sectorCount & 0xff);
+    }
+
     static long timestampToMillis(final int timestamp) {
         return 1000L * (long) timestamp;
     }
@@ -0,0 +1,127 @@
+package com.cavetale.nbtdump.region;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The location and timestamp tables of a region file, read into
+ * memory with one 8 KiB read.
+ */
+public final class RegionHeaderTable implements RegionFileHeader {
+    public static final int CHUNK_COUNT = 1024;
+    public static final int HEADER_SIZE = 2 * (int) KIB;
+    private final int[] locations = new int[CHUNK_COUNT];
+    private final int[] timestamps = new int[CHUNK_COUNT];
+
+    public RegionHeaderTable() { }
+
+    public static RegionHeaderTable read(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    public static RegionHeaderTable read(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new EOFException("Region header truncated: " + buffer.position());
+            }
+        }
+        buffer.flip();
+        final RegionHeaderTable result = new RegionHeaderTable();
+        buffer.asIntBuffer().get(result.locations).get(result.timestamps);
+        return result;
+    }
+
+    /**
+     * Write both tables with a single positional write.
+     */
+    public void write(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.asIntBuffer().put(locations).put(timestamps);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+    }
+
+    /**
+     * Read the compressed payload of a chunk listed in this header.
+     * @return the payload or null if the chunk does not exist
+     */
+    public ChunkPayload readChunk(final FileChannel channel, final int x, final int z) throws IOException {
+        final int location = getChunkLocation(x, z);
+        if (location == 0) return null;
+        final int offset = RegionFileHeader.locationToOffset(location);
+        if (offset < 2) {
+            throw new IOException("Invalid chunk location " + Integer.toHexString(location) + ": " + x + " " + z);
+        }
+        final long position = (long) offset * KIB;
+        final ByteBuffer prefix = ByteBuffer.allocate(5);
+        readFully(channel, prefix, position);
+        final int length = prefix.getInt(0);
+        final int compressionType = prefix.get(4) & 0xff;
+        if ((compressionType & ChunkCompression.EXTERNAL) != 0) {
+            throw new IOException("External chunk not supported: " + x + " " + z);
+        }
+        if (length < 1 || length > RegionFileHeader.locationToSectorCount(location) * (int) KIB) {
+            throw new IOException("Invalid chunk length " + length + ": " + x + " " + z);
+        }
+        final ByteBuffer data = ByteBuffer.allocate(length - 1);
+        readFully(channel, data, position + 5L);
+        return new ChunkPayload(compressionType, data.array());
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file: " + position);
+            }
+        }
+    }
+
+    public static int getChunkIndex(final int x, final int z) {
+        RegionFileHeader.assertChunkCoordRange(x, z);
+        return x + z * 32;
+    }
+
+    public int getChunkLocation(final int x, final int z) {
+        return locations[getChunkIndex(x, z)];
+    }
+
+    public int getChunkLocation(final int index) {
+        return locations[index];
+    }
+
+    public void setChunkLocation(final int x, final int z, final int location) {
+        locations[getChunkIndex(x, z)] = location;
+    }
+
+    public void setChunkTimestamp(final int x, final int z, final int timestamp) {
+        timestamps[getChunkIndex(x, z)] = timestamp;
+    }
+
+    @Override
+    public boolean hasChunk(final int x, final int z) {
+        return getChunkLocation(x, z) != 0;
+    }
+
+    @Override
+    public int getChunkOffset(final int x, final int z) {
+        return RegionFileHeader.locationToOffset(getChunkLocation(x, z));
+    }
+
+    @Override
+    public int getChunkSectorCount(final int x, final int z) {
+        return RegionFileHeader.locationToSectorCount(getChunkLocation(x, z));
+    }
+
+    @Override
+    public int getChunkTimestamp(final int x, final int z) {
+        return timestamps[getChunkIndex(x, z)];
+    }
+}
@@ -0,0 +1,79 @@
+package com.cavetale.nbtdump.region;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Bitmap of the used 4 KiB sectors of a region file.  Allocation is
+ * first fit, falling back to the end of the file.  Freed sectors stay
+ * in use until released, so they are not handed out again while the
+ * header on disk may still point to them.
+ */
+public final class SectorAllocator {
+    private final BitSet used = new BitSet();
+    private final BitSet freed = new BitSet();
+
+    public SectorAllocator() {
+        used.set(0, 2);
+    }
+
+    /**
+     * @throws IOException if a chunk location points into the header
+     */
+    public static SectorAllocator of(final RegionHeaderTable header) throws IOException {
+        final SectorAllocator result = new SectorAllocator();
+        for (int i = 0; i < RegionHeaderTable.CHUNK_COUNT; i += 1) {
+            final int location = header.getChunkLocation(i);
+            if (location == 0) continue;
+            final int offset = RegionFileHeader.locationToOffset(location);
+            if (offset < 2) {
+                throw new IOException("Invalid chunk location " + Integer.toHexString(location) + ": " + (i & 31) + " " + (i >> 5));
+            }
+            result.mark(offset, RegionFileHeader.locationToSectorCount(location));
+        }
+        return result;
+    }
+
+    public void mark(final int offset, final int count) {
+        used.set(offset, offset + count);
+    }
+
+    /**
+     * Free sectors once the header no longer points to them.  They
+     * remain taken until the next release.
+     */
+    public void free(final int offset, final int count) {
+        if (offset < 2) return;
+        freed.set(offset, offset + count);
+    }
+
+    /**
+     * Make the freed sectors available, after the header was written.
+     */
+    public void release() {
+        used.andNot(freed);
+        freed.clear();
+    }
+
+    /**
+     * Find and mark a run of free sectors.
+     * @return the offset of the first sector
+     */
+    public int allocate(final int count) {
+        int offset = used.nextClearBit(2);
+        while (true) {
+            final int next = used.nextSetBit(offset);
+            if (next < 0 || next - offset >= count) break;
+            offset = used.nextClearBit(next);
+        }
+        mark(offset, count);
+        return offset;
+    }
+
+    /**
+     * The number of sectors up to and including the last used one.
+     */
+    public int getSectorCount() {
+        return used.length();
+    }
+}
@@ -0,0 +1,204 @@
+package com.cavetale.nbtdump.region;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * A region file opened for editing.  The header is kept in memory
+ * and written back in one piece, either every few chunk writes or on
+ * flush.  Chunk payloads are rewritten in place if they still fit,
+ * otherwise moved to the first free run of sectors.
+ */
+public final class WritableRegionFile implements RegionFileHeader, Closeable {
+    private final File file;
+    private final FileChannel channel;
+    private final RegionHeaderTable header;
+    private final SectorAllocator allocator;
+    private final Options options;
+    private int unflushedWrites;
+    private boolean dirty;
+    private boolean modified;
+
+    public enum SyncPolicy {
+        /** Leave it to the operating system. */
+        NONE,
+        /** Force data and header to disk on close. */
+        CLOSE,
+        /** Force data and header to disk on every header flush. */
+        FLUSH;
+    }
+
+    /**
+     * @param headerFlushInterval write the header after this many
+     *   chunk writes, or only on flush and close if 0
+     * @param syncPolicy when to fsync
+     * @param truncate trim trailing free sectors on close, if
+     *   anything was written
+     */
+    public record Options(int headerFlushInterval, SyncPolicy syncPolicy, boolean truncate) {
+        public static final Options DEFAULT = new Options(0, SyncPolicy.CLOSE, false);
+    }
+
+    public WritableRegionFile(final File file, final Options options) throws IOException {
+        this.file = file;
+        this.options = options;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.header = RegionHeaderTable.read(channel);
+            this.allocator = SectorAllocator.of(header);
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    public WritableRegionFile(final File file) throws IOException {
+        this(file, Options.DEFAULT);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public RegionHeaderTable getHeader() {
+        return header;
+    }
+
+    /**
+     * Read the compressed payload of a chunk.
+     * @return the payload or null if the chunk does not exist
+     */
+    public ChunkPayload readChunk(final int x, final int z) throws IOException {
+        return header.readChunk(channel, x, z);
+    }
+
+    /**
+     * Read all chunks in on-disk order.
+     */
+    public List<RegionChunk> readChunks(final RegionChunkReader.Options readOptions, final LongConsumer bytesRead) throws IOException {
+        return RegionChunkReader.readChunks(channel, header, readOptions, bytesRead, file.toString());
+    }
+
+    /**
+     * Store a chunk payload and update its timestamp.
+     */
+    public void writeChunk(final int x, final int z, final ChunkPayload payload, final int timestamp) throws IOException {
+        final int sectorCount = payload.getSectorCount();
+        if (sectorCount > 255) {
+            throw new IOException(file + ": Chunk too large: " + x + " " + z + ": " + payload.getStoredLength());
+        }
+        final int oldLocation = header.getChunkLocation(x, z);
+        final int oldOffset = RegionFileHeader.locationToOffset(oldLocation);
+        final int oldSectorCount = RegionFileHeader.locationToSectorCount(oldLocation);
+        final int offset;
+        if (oldLocation != 0 && sectorCount <= oldSectorCount) {
+            offset = oldOffset;
+            allocator.free(oldOffset + sectorCount, oldSectorCount - sectorCount);
+        } else {
+            if (oldLocation != 0) allocator.free(oldOffset, oldSectorCount);
+            offset = allocator.allocate(sectorCount);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(sectorCount * (int) KIB);
+        buffer.putInt(payload.data().length + 1);
+        buffer.put((byte) payload.compressionType());
+        buffer.put(payload.data());
+        buffer.clear();
+        writeFully(buffer, (long) offset * KIB);
+        header.setChunkLocation(x, z, RegionFileHeader.toLocation(offset, sectorCount));
+        header.setChunkTimestamp(x, z, timestamp);
+        onHeaderChanged();
+    }
+
+    public void writeChunk(final int x, final int z, final ChunkPayload payload) throws IOException {
+        writeChunk(x, z, payload, (int) (System.currentTimeMillis() / 1000L));
+    }
+
+    /**
+     * Remove a chunk from the header and release its sectors.
+     */
+    public void deleteChunk(final int x, final int z) throws IOException {
+        final int location = header.getChunkLocation(x, z);
+        if (location == 0) return;
+        allocator.free(RegionFileHeader.locationToOffset(location), RegionFileHeader.locationToSectorCount(location));
+        header.setChunkLocation(x, z, 0);
+        header.setChunkTimestamp(x, z, 0);
+        onHeaderChanged();
+    }
+
+    private void onHeaderChanged() throws IOException {
+        dirty = true;
+        modified = true;
+        unflushedWrites += 1;
+        if (options.headerFlushInterval() > 0 && unflushedWrites >= options.headerFlushInterval()) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the header if it changed.  Only then can the sectors it
+     * no longer points to be reused.
+     */
+    public void flush() throws IOException {
+        if (!dirty) return;
+        header.write(channel);
+        dirty = false;
+        unflushedWrites = 0;
+        if (options.syncPolicy() == SyncPolicy.FLUSH) {
+            channel.force(false);
+        }
+        allocator.release();
+    }
+
+    /**
+     * Write the header if it changed.  A file that was never written
+     * to is neither truncated nor synced.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            if (!modified) return;
+            if (options.truncate()) {
+                final long length = (long) allocator.getSectorCount() * KIB;
+                if (channel.size() > length) channel.truncate(length);
+            }
+            if (options.syncPolicy() != SyncPolicy.NONE) {
+                channel.force(true);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    @Override
+    public boolean hasChunk(final int x, final int z) {
+        return header.hasChunk(x, z);
+    }
+
+    @Override
+    public int getChunkOffset(final int x, final int z) {
+        return header.getChunkOffset(x, z);
+    }
+
+    @Override
+    public int getChunkSectorCount(final int x, final int z) {
+        return header.getChunkSectorCount(x, z);
+    }
+
+    @Override
+    public int getChunkTimestamp(final int x, final int z) {
+        return header.getChunkTimestamp(x, z);
+    }
+}
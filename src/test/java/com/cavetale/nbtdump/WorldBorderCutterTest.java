@@ -0,0 +1,31 @@
+package com.cavetale.nbtdump;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class WorldBorderCutterTest {
+    private static final WorldBorderCutter.LevelBorder LEVEL_BORDER = new WorldBorderCutter.LevelBorder(1600.0, -800.0, 1000.0);
+
+    @Test
+    void overworldBorderIsCenteredAsStored() {
+        final WorldBorderCutter.Border border = LEVEL_BORDER.toBorder(1.0, 0);
+        assertEquals(new WorldBorderCutter.Border(68, 131, -82, -19), border);
+        assertTrue(border.containsChunk(100, -50));
+        assertFalse(border.containsChunk(0, 0));
+    }
+
+    @Test
+    void netherBorderCenterIsScaled() {
+        final WorldBorderCutter.Border border = LEVEL_BORDER.toBorder(8.0, 0);
+        assertEquals(new WorldBorderCutter.Border(-19, 43, -38, 25), border);
+        assertTrue(border.containsChunk(0, 0));
+        assertFalse(border.containsChunk(100, -50));
+    }
+
+    @Test
+    void paddingIsAddedInChunks() {
+        assertEquals(new WorldBorderCutter.Border(-21, 45, -40, 27), LEVEL_BORDER.toBorder(8.0, 2));
+    }
+}